@@ -6,29 +6,39 @@ package com.balwiki.mengine;
  * Note that this implies that the collision box and entity are not the same, 
  * such as tilemaps, which use the specific tile's collision box.
  * 
- * For performance reasons, there is only one instance of CollisionEvent; this
- * may not be necessary, and is especially limiting if you need to use data from
- * two different collisions at the same time. 
+ * For performance reasons, each Engine only has one instance of CollisionEvent,
+ * which is reused for every collision in that world; this may not be necessary,
+ * and is especially limiting if you need to use data from two different
+ * collisions at the same time. Keeping the instance per engine rather than
+ * global means that separate worlds can run on separate threads.
  * 
  * A possible improvement would be maintaining a pool of CollisionEvents that
  * can be reused and grows when more simultaneous collisions are needed.
  */
 public class CollisionEvent {
-	private static CollisionEvent instance = new CollisionEvent();
-	
 	public int boxX;
 	public int boxY;
 	public int boxWidth;
 	public int boxHeight;
 	public Entity entity;
 	
-	public static CollisionEvent create(int x, int y, int width, int height, Entity e) {
-		instance.boxX = x;
-		instance.boxY = y;
-		instance.boxWidth = width;
-		instance.boxHeight = height;
-		instance.entity = e;
+	/**
+	 * Fills in the event with a new collision and returns it.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param e
+	 * @return
+	 */
+	public CollisionEvent set(int x, int y, int width, int height, Entity e) {
+		boxX = x;
+		boxY = y;
+		boxWidth = width;
+		boxHeight = height;
+		entity = e;
 		
-		return instance;
+		return this;
 	}
 }
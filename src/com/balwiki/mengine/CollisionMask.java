@@ -0,0 +1,140 @@
+package com.balwiki.mengine;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A CollisionMask records which pixels of an image are solid, for pixel-perfect
+ * collision. Each row of the image is packed into 64-bit words, one bit per
+ * pixel, with a bit set wherever the pixel isn't fully transparent.
+ * 
+ * Testing two masks against each other only looks at the rectangle where they
+ * overlap, and compares 64 pixels at a time by ANDing shifted words, so a
+ * pixel-perfect test costs about as much as a handful of box tests.
+ * 
+ * Masks are built once per sprite frame by Sprite.getMask, not every frame.
+ * 
+ * @author Michael Kelly
+ */
+public class CollisionMask {
+	private final int width;
+	private final int height;
+	private final int words;
+	private final long[] bits;
+	
+	/**
+	 * Builds a mask from the alpha channel of an image, optionally flipped to
+	 * match how the image is drawn.
+	 * 
+	 * @param image
+	 * @param flipX
+	 * @param flipY
+	 */
+	public CollisionMask(BufferedImage image, boolean flipX, boolean flipY) {
+		width = image.getWidth();
+		height = image.getHeight();
+		words = (width + 63) >>> 6;
+		bits = new long[words * height];
+		
+		int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+		for (int y = 0; y < height; y++) {
+			int sy = flipY ? height - 1 - y : y;
+			for (int x = 0; x < width; x++) {
+				int sx = flipX ? width - 1 - x : x;
+				if ((pixels[sy * width + sx] >>> 24) != 0) {
+					bits[y * words + (x >>> 6)] |= 1L << x;
+				}
+			}
+		}
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Checks if any solid pixels of two masks overlap.
+	 * 
+	 * @param a		First mask
+	 * @param ax	X position of the first mask's top left corner
+	 * @param ay	Y position of the first mask's top left corner
+	 * @param b		Second mask
+	 * @param bx	X position of the second mask's top left corner
+	 * @param by	Y position of the second mask's top left corner
+	 * @return		True if the masks collide, false otherwise
+	 */
+	public static boolean overlaps(CollisionMask a, int ax, int ay, CollisionMask b, int bx, int by) {
+		int left = Math.max(ax, bx);
+		int right = Math.min(ax + a.width, bx + b.width);
+		int top = Math.max(ay, by);
+		int bottom = Math.min(ay + a.height, by + b.height);
+		
+		for (int y = top; y < bottom; y++) {
+			int rowA = (y - ay) * a.words;
+			int rowB = (y - by) * b.words;
+			for (int x = left; x < right; x += 64) {
+				long overlap = a.extract(rowA, x - ax) & b.extract(rowB, x - bx);
+				if (right - x < 64) {
+					overlap &= (1L << (right - x)) - 1;
+				}
+				if (overlap != 0) {
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Checks if any solid pixels of this mask are inside a box.
+	 * 
+	 * @param mx	X position of the mask's top left corner
+	 * @param my	Y position of the mask's top left corner
+	 * @param bx	X position of the box's top left corner
+	 * @param by	Y position of the box's top left corner
+	 * @param bw	Width of the box
+	 * @param bh	Height of the box
+	 * @return		True if the mask collides with the box, false otherwise
+	 */
+	public boolean overlapsBox(int mx, int my, int bx, int by, int bw, int bh) {
+		int left = Math.max(mx, bx);
+		int right = Math.min(mx + width, bx + bw);
+		int top = Math.max(my, by);
+		int bottom = Math.min(my + height, by + bh);
+		
+		for (int y = top; y < bottom; y++) {
+			int row = (y - my) * words;
+			for (int x = left; x < right; x += 64) {
+				long overlap = extract(row, x - mx);
+				if (right - x < 64) {
+					overlap &= (1L << (right - x)) - 1;
+				}
+				if (overlap != 0) {
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the 64 pixels of a row starting at the given column, with the
+	 * starting column in the lowest bit. Pixels past the end of the row are 0.
+	 */
+	private long extract(int row, int column) {
+		int word = column >>> 6;
+		int shift = column & 63;
+		
+		long result = bits[row + word] >>> shift;
+		if (shift != 0 && word + 1 < words) {
+			result |= bits[row + word + 1] << (64 - shift);
+		}
+		
+		return result;
+	}
+}
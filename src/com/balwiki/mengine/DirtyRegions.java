@@ -0,0 +1,136 @@
+package com.balwiki.mengine;
+
+/**
+ * DirtyRegions keeps track of the areas of the screen that need to be redrawn
+ * this frame. Rectangles that overlap or touch are merged as they are added,
+ * so the list stays short and no pixel is redrawn twice.
+ * 
+ * Rectangles are stored in preallocated arrays and clipped to the screen. If
+ * more than the maximum number of separate rectangles are added, they are all
+ * merged into a single rectangle.
+ * 
+ * @author Michael Kelly
+ */
+public class DirtyRegions {
+	private final int screenWidth;
+	private final int screenHeight;
+	
+	private final int[] rx;
+	private final int[] ry;
+	private final int[] rw;
+	private final int[] rh;
+	private int count = 0;
+	
+	/**
+	 * Creates an empty list of regions for a screen of the given size.
+	 * 
+	 * @param width			Width of the screen in pixels
+	 * @param height		Height of the screen in pixels
+	 * @param maxRegions	Maximum number of separate rectangles to track
+	 */
+	public DirtyRegions(int width, int height, int maxRegions) {
+		screenWidth = width;
+		screenHeight = height;
+		rx = new int[maxRegions];
+		ry = new int[maxRegions];
+		rw = new int[maxRegions];
+		rh = new int[maxRegions];
+	}
+	
+	/**
+	 * Marks a rectangle as needing to be redrawn. Empty rectangles and the
+	 * parts of rectangles outside of the screen are ignored.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 */
+	public void add(int x, int y, int width, int height) {
+		// Clip to the screen
+		int right = Math.min(x + width, screenWidth);
+		int bottom = Math.min(y + height, screenHeight);
+		x = Math.max(x, 0);
+		y = Math.max(y, 0);
+		if (right <= x || bottom <= y) {
+			return;
+		}
+		
+		// Absorb every rectangle that overlaps or touches the new one. Growing
+		// the new rectangle can make it reach rectangles that were already
+		// checked, so start over whenever something is merged.
+		int k = 0;
+		while (k < count) {
+			if (x <= rx[k] + rw[k] && rx[k] <= right && y <= ry[k] + rh[k] && ry[k] <= bottom) {
+				right = Math.max(right, rx[k] + rw[k]);
+				bottom = Math.max(bottom, ry[k] + rh[k]);
+				x = Math.min(x, rx[k]);
+				y = Math.min(y, ry[k]);
+				remove(k);
+				k = 0;
+			} else {
+				k++;
+			}
+		}
+		
+		// Out of room, so collapse everything into one rectangle
+		if (count == rx.length) {
+			for (k = 0; k < count; k++) {
+				right = Math.max(right, rx[k] + rw[k]);
+				bottom = Math.max(bottom, ry[k] + rh[k]);
+				x = Math.min(x, rx[k]);
+				y = Math.min(y, ry[k]);
+			}
+			count = 0;
+		}
+		
+		rx[count] = x;
+		ry[count] = y;
+		rw[count] = right - x;
+		rh[count] = bottom - y;
+		count++;
+	}
+	
+	/**
+	 * Marks the entire screen as needing to be redrawn.
+	 */
+	public void addAll() {
+		count = 0;
+		add(0, 0, screenWidth, screenHeight);
+	}
+	
+	/**
+	 * Removes all regions. Called once the regions have been redrawn.
+	 */
+	public void clear() {
+		count = 0;
+	}
+	
+	public int size() {
+		return count;
+	}
+	
+	public int getX(int index) {
+		return rx[index];
+	}
+	
+	public int getY(int index) {
+		return ry[index];
+	}
+	
+	public int getWidth(int index) {
+		return rw[index];
+	}
+	
+	public int getHeight(int index) {
+		return rh[index];
+	}
+	
+	private void remove(int index) {
+		count--;
+		rx[index] = rx[count];
+		ry[index] = ry[count];
+		rw[index] = rw[count];
+		rh[index] = rh[count];
+	}
+}
@@ -2,17 +2,20 @@ package com.balwiki.mengine;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Random;
 
 import javax.swing.JFrame;
 
 /**
  * Engine is the core of the game. It manages all entities in the
- * game world, runs the game loop, monitors the keyboard, and is
+ * game world, runs the game loop, monitors the keyboard, and owns
  * the window that contians the game itself.
  * 
  * Games are expected to subclass Engine and implement an empty
@@ -20,9 +23,17 @@ import javax.swing.JFrame;
  * dimensions, scale, and FPS. They are also expected to implement
  * initialize, which should create the entities needed to start the game.
  * 
+ * Game time is a virtual clock that advances by exactly one frame per step,
+ * regardless of how long the step took, so that a run is repeatable given
+ * the same seed and input. Engines can also be created headless, without a
+ * window, by using the constructor that takes a headless flag. Headless
+ * engines are driven by calling step() directly, and can run as fast as
+ * possible.
+ * 
  * @author Michael Kelly
  */
-public abstract class Engine extends JFrame implements KeyListener {
+public abstract class Engine implements KeyListener {
+	protected JFrame window;
 	protected Screen screen;
 	protected BufferedImage buffer;
 	protected Graphics g;
@@ -33,20 +44,74 @@ public abstract class Engine extends JFrame implements KeyListener {
 	protected int fps;
 	
 	protected int msPerFrame;
-	protected long frameStart;
+	
+	/**
+	 * Game time at which the current frame started, in milliseconds.
+	 */
+	protected long frameStart = 0;
+	
+	/**
+	 * All randomness in the game should come from this generator, so that a
+	 * run can be repeated by reusing its seed. Its state is saved with the world,
+	 * so rewinding also rewinds the random numbers.
+	 */
+	protected long seed;
+	protected GameRandom random;
+	
+	protected InputRecorder recorder;
+	protected SnapshotRing history;
+	
+	// Reused for every collision in this world, see CollisionEvent
+	protected CollisionEvent collisionEvent = new CollisionEvent();
 	
 	protected ArrayList<Entity> entities = new ArrayList<Entity>();
 	protected ArrayList<Entity> addQueue = new ArrayList<Entity>();
 	
 	/**
-	 * Keys contains the status of the keyboard, indexed by KeyEvent.VK 
-	 * integer values. True means a key is down; false means it is up.
+	 * Entities indexed by collision layer: layers.get(n) holds every entity whose
+	 * collision category has bit n set. Collision queries only look at the layers
+	 * they are interested in.
+	 */
+	protected ArrayList<ArrayList<Entity>> layers = new ArrayList<ArrayList<Entity>>();
+	
+	// Particle systems, and the buffer's pixels that they draw into directly
+	protected ArrayList<ParticleSystem> particleSystems = new ArrayList<ParticleSystem>();
+	protected int[] pixels;
+	
+	// Finds contacts between entities with contact events on, once per frame
+	protected SweepAndPrune contacts = new SweepAndPrune();
+	protected int nextEntityId = 1;
+	
+	// Number of collidesWith calls made, and candidates skipped by layer filtering
+	protected long collisionTests = 0;
+	protected long collisionTestsSkipped = 0;
+	
+	/**
+	 * Keyboard events are queued by the AWT event thread and drained into the
+	 * input snapshot once at the start of each step.
 	 */
-	public boolean[] keys = new boolean[65536];
+	protected InputQueue inputQueue = new InputQueue(1024);
+	protected Input input = new Input();
 	
 	/**
-	 * Creates the screen and buffer, hooks into the keyboard, initializes
-	 * the game, and runs the game loop.
+	 * Difference between game time and the wall clock, updated every step. Key
+	 * events are stamped with it so their times are on the game clock, the same
+	 * as the times of replayed events.
+	 */
+	private volatile long clockOffset = -System.currentTimeMillis();
+	
+	/**
+	 * When dirty rendering is enabled, only the regions of the screen that
+	 * changed since the last frame are redrawn and copied to the screen.
+	 */
+	protected boolean dirtyRendering = false;
+	protected DirtyRegions dirtyRegions;
+	protected Rectangle drawBounds = new Rectangle();
+	protected Rectangle clipBounds = new Rectangle();
+	
+	/**
+	 * Creates the window, screen and buffer, hooks into the keyboard, initializes
+	 * the game, and runs the game loop. This constructor never returns.
 	 * 
 	 * @param width
 	 * @param height
@@ -54,41 +119,83 @@ public abstract class Engine extends JFrame implements KeyListener {
 	 * @param fps
 	 */
 	public Engine(int width, int height, int scale, int fps) {
+		this(width, height, scale, fps, false);
+		
+		// Run the subclass' game initialization
+		initialize();
+		
+		run();
+	}
+	
+	/**
+	 * Creates the engine without initializing the game or starting the game loop.
+	 * The caller is expected to call initialize(), and then either run() or step()
+	 * for each frame.
+	 * 
+	 * A headless engine has no window or screen. It still draws into its buffer
+	 * each frame, but nothing is shown.
+	 * 
+	 * @param width
+	 * @param height
+	 * @param scale
+	 * @param fps
+	 * @param headless	True to run without a window
+	 */
+	protected Engine(int width, int height, int scale, int fps, boolean headless) {
 		trueWidth = width;
 		trueHeight = height;
 		this.scale = scale;
 		this.fps = fps;
 		msPerFrame = 1000 / fps;
+		setSeed(System.nanoTime());
 		
-		// Make sure to close when we're gone, and hook into keyboard events
-		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		addKeyListener(this);
-		
-		// Create the screen that we draw on, and pack the window to fit
-		// the screen
-		screen = new Screen(width * scale, height * scale);
-		add(screen);
-		pack();
-		
-		setVisible(true);
+		if (!headless) {
+			// Make sure to close when we're gone, and hook into keyboard events
+			window = new JFrame();
+			window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+			window.addKeyListener(this);
+			
+			// Create the screen that we draw on, and pack the window to fit
+			// the screen
+			screen = new Screen(width * scale, height * scale);
+			window.add(screen);
+			window.pack();
+			
+			window.setVisible(true);
+		}
 		
 		// Initialize the drawing buffer
 		buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 		g = buffer.getGraphics();
+		dirtyRegions = new DirtyRegions(width, height, 32);
 		
-		// Run the subclass' game initialization
-		initialize();
-		
+		for (int k = 0; k < 32; k++) {
+			layers.add(new ArrayList<Entity>());
+		}
+	}
+	
+	/**
+	 * Runs the game loop forever, stepping once per frame and waiting between
+	 * frames to achieve the desired FPS.
+	 */
+	public void run() {
 		// And bam, here's the mystical game loop. So impressive!
 		while (true) {
+			long start = System.currentTimeMillis();
 			step();
+			
+			// Timing
+			while (System.currentTimeMillis() < start + msPerFrame) {
+				// Do nothing
+			}
 		}
 	}
 	
 	/**
 	 * Called by the constructor to initialize the game before starting the game loop.
 	 * initialize() should create all the entities and other things needed to begin
-	 * playing the game.
+	 * playing the game. When using the headless constructor, it must be called by
+	 * whoever created the engine.
 	 */
 	public abstract void initialize();
 	
@@ -100,8 +207,9 @@ public abstract class Engine extends JFrame implements KeyListener {
 	 * the processing for all entities.
 	 */
 	public void process() {
-		for (Entity e : entities) {
-			e.process();
+		// Indexed loops are used on the per-frame path so no iterators are allocated
+		for (int k = 0; k < entities.size(); k++) {
+			entities.get(k).process();
 		}
 	}
 	
@@ -111,41 +219,334 @@ public abstract class Engine extends JFrame implements KeyListener {
 	 * Any overriding method in a subclass should call the superclass version, as it draws
 	 * all entities in the world.
 	 * 
+	 * When dirty rendering is enabled, this is called once per dirty region with the
+	 * graphics clipped to that region, and entities outside of the region are skipped.
+	 * 
 	 * @param g
 	 */
 	public void draw(Graphics g) {
-		for (Entity e : entities) {
-			e.draw(g);
+		if (dirtyRendering) {
+			g.getClipBounds(clipBounds);
+		}
+		
+		for (int k = 0; k < entities.size(); k++) {
+			Entity e = entities.get(k);
+			if (!dirtyRendering || e.drawnIntersects(clipBounds)) {
+				e.draw(g);
+			}
 		}
 	}
 	
 	/**
 	 * Clears the buffer, calls the process and draw steps, then draws the buffer to
-	 * the screen. Also handles adding queued entities to the world and timing to 
-	 * achieve the desired FPS.
+	 * the screen. Also handles adding queued entities to the world and recording the
+	 * frame if a recorder is attached. Waiting for the next frame is left to run().
 	 */
 	public void step() {
-		frameStart = System.currentTimeMillis();
+		frameStart += msPerFrame;
 		
-		g.setColor(Color.black);
-		g.fillRect(0, 0, getWidth(), getHeight());
+		pollInput();
 		
-		// Process and draw all entities and any extra processing added by the subclass
+		// Process and draw all entities and any extra processing added by the subclass,
+		// then report contacts between the entities in their new positions
 		process();
-		draw(g);
+		contacts.update();
+		updateParticles();
+		if (dirtyRendering) {
+			drawDirty();
+		} else {
+			g.setColor(Color.black);
+			g.fillRect(0, 0, trueWidth, trueHeight);
+			draw(g);
+			drawParticles();
+			
+			if (screen != null) {
+				screen.drawBuffer(buffer);
+			}
+		}
+		
+		// Add queued entities. addAll copies the queue into an array, so skip it
+		// when there's nothing to add.
+		if (!addQueue.isEmpty()) {
+			for (int k = 0; k < addQueue.size(); k++) {
+				Entity e = addQueue.get(k);
+				e.inWorld = true;
+				addToLayers(e, e.getCollisionCategory());
+				if (e.hasContactEvents()) {
+					contacts.add(e);
+				}
+			}
+			entities.addAll(addQueue);
+			addQueue.clear();
+		}
 		
-		screen.drawBuffer(buffer);
+		if (history != null) {
+			history.capture(this);
+		}
 		
-		// Add queued entities
-		entities.addAll(addQueue);
+		if (recorder != null) {
+			try {
+				recorder.recordFrame(input, frameStart, checksum());
+			} catch (IOException e) {
+				e.printStackTrace();
+				recorder = null;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the game time at which the current frame started, in milliseconds.
+	 * Entities should use this instead of the system clock so that runs are
+	 * repeatable.
+	 * 
+	 * @return
+	 */
+	public long getFrameTime() {
+		return frameStart;
+	}
+	
+	/**
+	 * Reseeds the engine's random number generator. To repeat a run exactly, this
+	 * must be called with the run's seed before initialize().
+	 * 
+	 * @param newSeed
+	 */
+	public void setSeed(long newSeed) {
+		seed = newSeed;
+		random = new GameRandom(newSeed);
+	}
+	
+	public long getSeed() {
+		return seed;
+	}
+	
+	public Random getRandom() {
+		return random;
+	}
+	
+	/**
+	 * Attaches a recorder that writes the input and world checksum of every
+	 * frame from now on. Pass null to stop recording.
+	 * 
+	 * @param newRecorder
+	 */
+	public void setRecorder(InputRecorder newRecorder) {
+		recorder = newRecorder;
+	}
+	
+	/**
+	 * Keeps a snapshot of the world at the end of every frame in the given ring,
+	 * so the game can be rewound. Pass null to stop keeping history.
+	 * 
+	 * @param ring
+	 */
+	public void setHistory(SnapshotRing ring) {
+		history = ring;
+	}
+	
+	/**
+	 * Restores the world to how it was a number of frames ago, using the history
+	 * kept by setHistory. 0 restores the end of the last frame.
+	 * 
+	 * @param frames
+	 */
+	public void rewind(int frames) {
+		history.restore(this, frames);
+	}
+	
+	/**
+	 * Writes the state of the world into the buffer: the game time, the state of
+	 * the random number generator, and the state of every entity, in order. This
+	 * can be used as a quick-save.
+	 * 
+	 * @param buffer
+	 */
+	public void saveState(StateBuffer buffer) {
+		buffer.writeLong(frameStart);
+		buffer.writeLong(random.getState());
+		buffer.writeInt(entities.size());
+		for (int k = 0; k < entities.size(); k++) {
+			entities.get(k).writeState(buffer);
+		}
+	}
+	
+	/**
+	 * Restores the state written by saveState. Entities are matched up by their
+	 * position in the world, so entities added since the state was saved are
+	 * removed, and entities waiting to be added are dropped.
+	 * 
+	 * @param buffer
+	 */
+	public void loadState(StateBuffer buffer) {
+		buffer.rewind();
+		long time = buffer.readLong();
+		long randomState = buffer.readLong();
+		int count = buffer.readInt();
+		if (count > entities.size()) {
+			throw new IllegalStateException("Saved state has " + count + " entities, but the world only has " + entities.size());
+		}
+		
+		frameStart = time;
+		random.setState(randomState);
+		while (entities.size() > count) {
+			Entity removed = entities.remove(entities.size() - 1);
+			removed.inWorld = false;
+			removeFromLayers(removed, removed.getCollisionCategory());
+			if (removed.hasContactEvents()) {
+				contacts.remove(removed);
+			}
+		}
 		addQueue.clear();
 		
-		// Timing
-		while (System.currentTimeMillis() < frameStart + msPerFrame) {
-			// Do nothing
+		for (int k = 0; k < count; k++) {
+			entities.get(k).readState(buffer);
+		}
+		
+		if (dirtyRendering) {
+			dirtyRegions.addAll();
 		}
 	}
 	
+	/**
+	 * Computes a checksum of the state of every entity in the world. Two runs
+	 * with the same seed and input should produce the same checksum on every
+	 * frame; a difference means the runs have diverged.
+	 * 
+	 * @return
+	 */
+	public int checksum() {
+		int hash = 1;
+		for (int k = 0; k < entities.size(); k++) {
+			hash = 31 * hash + entities.get(k).stateHash();
+		}
+		
+		return hash;
+	}
+	
+	/**
+	 * Moves every particle forward by one frame. With dirty rendering, the areas
+	 * covered by the particles before and after moving are marked dirty.
+	 */
+	protected void updateParticles() {
+		float dt = msPerFrame / 1000f;
+		for (int k = 0; k < particleSystems.size(); k++) {
+			ParticleSystem ps = particleSystems.get(k);
+			if (dirtyRendering) {
+				ps.markDirty(dirtyRegions);
+			}
+			ps.update(dt);
+			if (dirtyRendering) {
+				ps.markDirty(dirtyRegions);
+			}
+		}
+	}
+	
+	/**
+	 * Draws every particle system straight into the buffer's pixels, on top of
+	 * the entities.
+	 */
+	protected void drawParticles() {
+		for (int k = 0; k < particleSystems.size(); k++) {
+			particleSystems.get(k).draw(pixels, trueWidth, trueHeight);
+		}
+	}
+	
+	/**
+	 * Adds a particle system to the game world. Unlike entities, it is updated
+	 * starting with the current frame.
+	 * 
+	 * @param ps
+	 */
+	public void addParticleSystem(ParticleSystem ps) {
+		// Writing to the pixels directly is much faster than drawing each particle
+		// through Graphics. The array is only fetched when particles are used, since
+		// Java2D stops accelerating images whose pixels have been taken.
+		if (pixels == null) {
+			pixels = ((DataBufferInt) buffer.getRaster().getDataBuffer()).getData();
+		}
+		
+		ps.setEngine(this);
+		particleSystems.add(ps);
+	}
+	
+	/**
+	 * Finds which parts of the screen changed since the last frame, then clears
+	 * and redraws only those regions and copies them to the screen.
+	 */
+	protected void drawDirty() {
+		for (int k = 0; k < entities.size(); k++) {
+			entities.get(k).trackChanges(dirtyRegions, drawBounds);
+		}
+		
+		g.setColor(Color.black);
+		for (int k = 0; k < dirtyRegions.size(); k++) {
+			g.setClip(dirtyRegions.getX(k), dirtyRegions.getY(k), dirtyRegions.getWidth(k), dirtyRegions.getHeight(k));
+			g.fillRect(dirtyRegions.getX(k), dirtyRegions.getY(k), dirtyRegions.getWidth(k), dirtyRegions.getHeight(k));
+			draw(g);
+		}
+		g.setClip(null);
+		drawParticles();
+		
+		if (screen != null) {
+			screen.drawBuffer(buffer, dirtyRegions);
+		}
+		dirtyRegions.clear();
+	}
+	
+	/**
+	 * Turns dirty rectangle rendering on or off. With it on, the engine tracks
+	 * which entities moved or changed appearance, and only redraws the regions of
+	 * the screen they covered before and after the change. This saves a lot of
+	 * work on screens where most things stand still.
+	 * 
+	 * Entities that draw something other than their sprite need to report their
+	 * area through getDrawBounds, and call markDirty when it changes in a way the
+	 * engine can't see. Anything drawn by overriding Engine.draw should call
+	 * markDirty on the engine for the area it covers.
+	 * 
+	 * @param enabled
+	 */
+	public void setDirtyRendering(boolean enabled) {
+		dirtyRendering = enabled;
+		
+		// The buffer may be stale, so start by redrawing everything
+		dirtyRegions.addAll();
+	}
+	
+	/**
+	 * Marks an area of the screen to be redrawn on the next frame when dirty
+	 * rendering is enabled. Does nothing otherwise.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 */
+	public void markDirty(int x, int y, int width, int height) {
+		if (dirtyRendering) {
+			dirtyRegions.add(x, y, width, height);
+		}
+	}
+	
+	/**
+	 * Builds this frame's input snapshot from the keyboard events queued since
+	 * the last frame.
+	 */
+	protected void pollInput() {
+		clockOffset = frameStart - System.currentTimeMillis();
+		input.beginFrame();
+		inputQueue.drainTo(input);
+	}
+	
+	/**
+	 * Returns the keyboard state for the current frame.
+	 * 
+	 * @return
+	 */
+	public Input getInput() {
+		return input;
+	}
+	
 	/**
 	 * Adds an entity to the game world. Entities are stored in a queue and added after
 	 * the current frame finishes.
@@ -154,13 +555,41 @@ public abstract class Engine extends JFrame implements KeyListener {
 	 */
 	public void addEntity(Entity e) {
 		e.setEngine(this);
+		e.id = nextEntityId++;
 		addQueue.add(e);
 	}
 	
 	/**
-	 * Checks for collision against every other entity in the game world.
+	 * Returns this world's CollisionEvent, which entities fill in and return
+	 * from collidesWith.
 	 * 
-	 * This method is very primitive and doesn't really optimize anything. A good improvement
+	 * @return
+	 */
+	public CollisionEvent getCollisionEvent() {
+		return collisionEvent;
+	}
+	
+	/**
+	 * Checks for collision against every other entity in the game world that the
+	 * entity's collision filter allows.
+	 * 
+	 * @param e
+	 * @param dx
+	 * @param dy
+	 * @return
+	 */
+	public CollisionEvent checkCollision(Entity e, int dx, int dy) {
+		return checkCollision(e, dx, dy, -1);
+	}
+	
+	/**
+	 * Checks for collision against the entities in the given collision layers.
+	 * Two entities are only tested if each one's category is in the other's
+	 * filter, and the other's category is also in the query's filter. These
+	 * checks happen before any call to collidesWith, and layers that aren't
+	 * part of the query are skipped entirely.
+	 * 
+	 * This still tests every entity in the selected layers. A good improvement
 	 * to the engine would be implementing a quadtree or hierarchical grid to organize where
 	 * objects are, so that only objects that are close enough to collide with the object
 	 * are checked. In other words, google for "hierarchical grid collision"
@@ -168,36 +597,128 @@ public abstract class Engine extends JFrame implements KeyListener {
 	 * @param e
 	 * @param dx
 	 * @param dy
+	 * @param filter	Bitmask of the collision layers to check against
 	 * @return
 	 */
-	public CollisionEvent checkCollision(Entity e, int dx, int dy) {
+	public CollisionEvent checkCollision(Entity e, int dx, int dy, int filter) {
+		int wanted = filter & e.getCollisionFilter();
+		int category = e.getCollisionCategory();
 		CollisionEvent event;
-		for (Entity e2 : entities) {
-			if(e != e2 && (event = e2.collidesWith(e, dx, dy)) != null) {
-				return event;
+		
+		for (int layer = 0; layer < 32; layer++) {
+			ArrayList<Entity> list = layers.get(layer);
+			if ((wanted & (1 << layer)) == 0) {
+				collisionTestsSkipped += list.size();
+				continue;
+			}
+			
+			for (int k = 0; k < list.size(); k++) {
+				Entity e2 = list.get(k);
+				
+				// Entities on several wanted layers are only tested on the first one
+				if (e2 == e || Integer.numberOfTrailingZeros(e2.getCollisionCategory() & wanted) != layer) {
+					continue;
+				}
+				if ((e2.getCollisionFilter() & category) == 0) {
+					collisionTestsSkipped++;
+					continue;
+				}
+				
+				collisionTests++;
+				if ((event = e2.collidesWith(e, dx, dy)) != null) {
+					return event;
+				}
 			}
 		}
 		
 		return null;
 	}
+	
+	/**
+	 * Returns the number of times collidesWith has been called by collision
+	 * queries since the counters were last reset.
+	 * 
+	 * @return
+	 */
+	public long getCollisionTests() {
+		return collisionTests;
+	}
+	
+	/**
+	 * Returns the number of candidates that collision queries skipped because of
+	 * their layers or filters, without calling collidesWith. An entity in several
+	 * skipped layers is counted once for each.
+	 * 
+	 * @return
+	 */
+	public long getCollisionTestsSkipped() {
+		return collisionTestsSkipped;
+	}
+	
+	public void resetCollisionStats() {
+		collisionTests = 0;
+		collisionTestsSkipped = 0;
+	}
+	
+	/**
+	 * Moves an entity that is already in the world to the layers of its new
+	 * collision category. Called by Entity.setCollisionCategory.
+	 * 
+	 * @param e
+	 * @param oldCategory
+	 */
+	void changeCategory(Entity e, int oldCategory) {
+		if (e.inWorld) {
+			removeFromLayers(e, oldCategory);
+			addToLayers(e, e.getCollisionCategory());
+		}
+	}
+	
+	/**
+	 * Starts or stops tracking contacts for an entity that is already in the
+	 * world. Called by Entity.setContactEvents.
+	 * 
+	 * @param e
+	 */
+	void changeContactEvents(Entity e) {
+		if (e.inWorld) {
+			if (e.hasContactEvents()) {
+				contacts.add(e);
+			} else {
+				contacts.remove(e);
+			}
+		}
+	}
+	
+	private void addToLayers(Entity e, int category) {
+		for (int layer = 0; layer < 32; layer++) {
+			if ((category & (1 << layer)) != 0) {
+				layers.get(layer).add(e);
+			}
+		}
+	}
+	
+	private void removeFromLayers(Entity e, int category) {
+		for (int layer = 0; layer < 32; layer++) {
+			if ((category & (1 << layer)) != 0) {
+				layers.get(layer).remove(e);
+			}
+		}
+	}
 
 	/**
-	 * Below are the keylistener methods. They simply change the keys array when
-	 * the keyboard state changes.
+	 * Below are the keylistener methods. They run on the AWT event thread and
+	 * simply queue the event for the game thread to pick up on its next step.
 	 */
 	
 	@Override
 	public void keyPressed(KeyEvent e) {
-		if (e.getKeyCode() < keys.length) {
-			keys[e.getKeyCode()] = true;
-		}
+		inputQueue.offer(e.getKeyCode(), true, e.getWhen() + clockOffset);
 	}
 
 	@Override
 	public void keyReleased(KeyEvent e) {
-		if (e.getKeyCode() < keys.length) {
-			keys[e.getKeyCode()] = false;
-		}
+		inputQueue.offer(e.getKeyCode(), false, e.getWhen() + clockOffset);
 	}
 
 	@Override
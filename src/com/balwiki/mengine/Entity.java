@@ -1,17 +1,37 @@
 package com.balwiki.mengine;
 
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
 
 /**
  * Represents a "thing" inside of the game world. Entities have a position,
  * a collision box (defined by x/y and width/height), and a graphical
  * representation (via a Sprite).
  * 
+ * Sprites are looked up in a SpriteSet, which is normally shared by every
+ * entity of the same type. Each entity only stores the handle of its current
+ * sprite and how far along its animation is.
+ * 
+ * Entities are Saveable so the engine can snapshot and restore the world.
+ * Subclasses with extra state need to override writeState and readState.
+ * 
  * @author Michael Kelly
  */
-public abstract class Entity implements Comparable<Entity> {	
+public abstract class Entity implements Comparable<Entity>, Saveable {	
+	/**
+	 * Sprite handle meaning that no sprite is displayed.
+	 */
+	public static final int NO_SPRITE = -1;
+	
+	/**
+	 * States passed to onCollision: the entities started touching this frame,
+	 * are still touching, or stopped touching.
+	 */
+	public static final int COLLISION_ENTER = 0;
+	public static final int COLLISION_STAY = 1;
+	public static final int COLLISION_EXIT = 2;
+	
 	public int x;
 	public int y;
 	public int z;
@@ -21,12 +41,46 @@ public abstract class Entity implements Comparable<Entity> {
 	public boolean flipX = false;
 	public boolean flipY = false;
 	
-	protected HashMap<String, Sprite> sprites = new HashMap<String, Sprite>();
-	protected Sprite curSprite = null;
-	protected String curSpriteKey = null;
+	/**
+	 * If true, collisions that pass the box test are checked again against the
+	 * solid pixels of the current sprite frame.
+	 */
+	public boolean pixelCollision = false;
+	
+	/**
+	 * Collision layers. The category holds the layers this entity is on, and the
+	 * filter holds the layers it can collide with; both are bitmasks of up to 32
+	 * layers. By default entities are on layer 0 and collide with everything.
+	 */
+	protected int collisionCategory = 1;
+	protected int collisionFilter = -1;
+	
+	protected SpriteSet spriteSet = null;
+	protected int curSprite = NO_SPRITE;
+	protected int curFrame = 0;
+	protected long curTime = 0;
 	
 	protected Engine engine;
 	
+	// Unique within the engine, assigned when the entity is added
+	protected int id;
+	
+	// True while the entity is in the engine's world, rather than queued or removed
+	boolean inWorld = false;
+	
+	// True if the engine should report contacts with onCollision
+	protected boolean contactEvents = false;
+	
+	// Area covered the last time the entity was drawn, used by the engine's
+	// dirty rectangle rendering to find out what needs to be redrawn.
+	protected int drawnX;
+	protected int drawnY;
+	protected int drawnWidth = 0;
+	protected int drawnHeight = 0;
+	protected boolean drawnFlipX;
+	protected boolean drawnFlipY;
+	protected boolean redraw = true;
+	
 	protected long processStartTime;
 	
 	/**
@@ -34,13 +88,47 @@ public abstract class Entity implements Comparable<Entity> {
 	 * most likely override this with extra functionality.
 	 */
 	public void process() {
-		long newProcessStartTime = System.currentTimeMillis();
+		long newProcessStartTime = engine.getFrameTime();
 		long timePassed = newProcessStartTime - processStartTime;
 		processStartTime = newProcessStartTime;
 		
-		if (curSprite != null) {
-			curSprite.addTime(timePassed);
+		if (curSprite != NO_SPRITE) {
+			animate(timePassed);
+		}
+	}
+	
+	/**
+	 * Advances the time counter of the current sprite. If enough time has
+	 * passed, the entity moves on to the next image in the animation.
+	 * 
+	 * @param time
+	 */
+	protected void animate(long time) {
+		Sprite sprite = spriteSet.get(curSprite);
+		if (sprite.getFrameCount() == 1) {
+			// Static sprites never change frame, so there's no time to count
+			return;
+		}
+		
+		curTime += time;
+		if (curTime > sprite.getDelay(curFrame)) {
+			curTime -= sprite.getDelay(curFrame);
+			curFrame = (curFrame + 1) % sprite.getFrameCount();
+			redraw = true;
+		}
+	}
+	
+	/**
+	 * Grabs the image that should currently be displayed for this entity.
+	 * 
+	 * @return The current frame, or null if no sprite is set
+	 */
+	public BufferedImage getFrame() {
+		if (curSprite == NO_SPRITE) {
+			return null;
 		}
+		
+		return spriteSet.get(curSprite).getFrame(curFrame);
 	}
 	
 	/**
@@ -51,77 +139,401 @@ public abstract class Entity implements Comparable<Entity> {
 	 * @param g
 	 */
 	public void draw(Graphics g) {
-		if (curSprite != null) {
-			BufferedImage curFrame = curSprite.getFrame();
-			g.drawImage(curFrame, 
-					x + (flipX ? curFrame.getWidth() : 0), 
-					y + (flipY ? curFrame.getHeight() : 0), 
-					curFrame.getWidth() * (flipX ? -1 : 1), 
-					curFrame.getHeight() * (flipY ? -1 : 1), 
+		BufferedImage frame = getFrame();
+		if (frame != null) {
+			g.drawImage(frame, 
+					x + (flipX ? frame.getWidth() : 0), 
+					y + (flipY ? frame.getHeight() : 0), 
+					frame.getWidth() * (flipX ? -1 : 1), 
+					frame.getHeight() * (flipY ? -1 : 1), 
 					null);
 		}
 	}
 	
+	/**
+	 * Fills the given rectangle with the area that this entity covers when it
+	 * is drawn. By default this is the current sprite frame at the entity's
+	 * position, or the collision box if there is no sprite. Subclasses that
+	 * override draw() to draw something else should override this as well.
+	 * 
+	 * @param bounds
+	 */
+	public void getDrawBounds(Rectangle bounds) {
+		BufferedImage frame = getFrame();
+		if (frame != null) {
+			bounds.setBounds(x, y, frame.getWidth(), frame.getHeight());
+		} else {
+			bounds.setBounds(x, y, width, height);
+		}
+	}
+	
+	/**
+	 * Tells the engine that this entity's appearance changed in a way it can't
+	 * detect by itself, so it is redrawn on the next frame when dirty rectangle
+	 * rendering is enabled. Moving, flipping, and changing or animating sprites
+	 * are detected automatically.
+	 */
+	public void markDirty() {
+		redraw = true;
+	}
+	
+	/**
+	 * Compares the area the entity covers now against the area it covered the
+	 * last time it was drawn. If anything changed, both areas are added to the
+	 * dirty regions, and the new area is remembered.
+	 * 
+	 * @param regions
+	 * @param bounds	Scratch rectangle used to avoid allocation
+	 */
+	void trackChanges(DirtyRegions regions, Rectangle bounds) {
+		getDrawBounds(bounds);
+		if (redraw || flipX != drawnFlipX || flipY != drawnFlipY
+				|| bounds.x != drawnX || bounds.y != drawnY 
+				|| bounds.width != drawnWidth || bounds.height != drawnHeight) {
+			regions.add(drawnX, drawnY, drawnWidth, drawnHeight);
+			regions.add(bounds.x, bounds.y, bounds.width, bounds.height);
+			
+			drawnX = bounds.x;
+			drawnY = bounds.y;
+			drawnWidth = bounds.width;
+			drawnHeight = bounds.height;
+			drawnFlipX = flipX;
+			drawnFlipY = flipY;
+			redraw = false;
+		}
+	}
+	
+	/**
+	 * Returns true if the area covered the last time this entity was drawn
+	 * intersects the given rectangle.
+	 * 
+	 * @param r
+	 * @return
+	 */
+	boolean drawnIntersects(Rectangle r) {
+		return Util.boxCollide(drawnX, drawnY, drawnWidth, drawnHeight, r.x, r.y, r.width, r.height);
+	}
+	
 	/**
 	 * Checks if the given entity and this entity are colliding. Does a 
 	 * simple box collision by default using x,y,width, and height.
 	 * 
+	 * If either entity uses pixel collision, boxes that collide are checked
+	 * again using the collision masks of their current sprite frames.
+	 * 
 	 * @param e		Entity to check for collision with
 	 * @param dx	Desired X movement for the other entity
 	 * @param dy	Desired Y movement for the other entity
 	 * @return		True if colliding, false otherwise
 	 */
 	public CollisionEvent collidesWith(Entity e, int dx, int dy) {
-		if (Util.boxCollide(x, y, width, height, e.x + dx, e.y + dy, e.width, e.height)) {
-			return CollisionEvent.create(x, y, width, height, this);
+		if (Util.boxCollide(x, y, width, height, e.x + dx, e.y + dy, e.width, e.height)
+				&& pixelsCollide(e, dx, dy)) {
+			return engine.getCollisionEvent().set(x, y, width, height, this);
 		}
 		
 		return null;
 	}
 	
 	/**
-	 * Creates a static sprite and stores it in this sprite map
+	 * Fills the given rectangle with the area, in pixels, that this entity can
+	 * collide within. By default this is the collision box. Subclasses whose width
+	 * and height aren't in pixels, like tilemaps, should override this.
+	 * 
+	 * @param bounds
+	 */
+	public void getCollisionBounds(Rectangle bounds) {
+		bounds.setBounds(x, y, width, height);
+	}
+	
+	/**
+	 * Checks whether this entity and the given entity are touching, for contact
+	 * events. By default this asks the other entity's collidesWith, so subclasses
+	 * with their own collision shape, like tilemaps, only need to override this
+	 * to use their own collidesWith instead.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	public boolean touches(Entity e) {
+		return e.collidesWith(this, 0, 0) != null;
+	}
+	
+	/**
+	 * Pixel-perfect check run after the box test passes. Entities without a mask
+	 * are treated as their solid collision box.
+	 * 
+	 * @param e		Entity to check for collision with
+	 * @param dx	Desired X movement for the other entity
+	 * @param dy	Desired Y movement for the other entity
+	 * @return		True if the solid pixels collide, false otherwise
+	 */
+	protected boolean pixelsCollide(Entity e, int dx, int dy) {
+		CollisionMask mine = getCollisionMask();
+		CollisionMask theirs = e.getCollisionMask();
+		
+		if (mine != null && theirs != null) {
+			return CollisionMask.overlaps(mine, x, y, theirs, e.x + dx, e.y + dy);
+		} else if (mine != null) {
+			return mine.overlapsBox(x, y, e.x + dx, e.y + dy, e.width, e.height);
+		} else if (theirs != null) {
+			return theirs.overlapsBox(e.x + dx, e.y + dy, x, y, width, height);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns the collision mask of the current sprite frame, positioned at the
+	 * entity's x and y, or null if the entity doesn't use pixel collision.
+	 * 
+	 * @return
+	 */
+	public CollisionMask getCollisionMask() {
+		if (!pixelCollision || curSprite == NO_SPRITE) {
+			return null;
+		}
+		
+		return spriteSet.get(curSprite).getMask(curFrame, flipX, flipY);
+	}
+	
+	/**
+	 * Sets the SpriteSet that this entity takes its sprites from. Entities of
+	 * the same type should share one SpriteSet. Clears the current sprite.
+	 * 
+	 * @param set
+	 */
+	public void setSpriteSet(SpriteSet set) {
+		spriteSet = set;
+		curSprite = NO_SPRITE;
+		curFrame = 0;
+		curTime = 0;
+		redraw = true;
+	}
+	
+	public SpriteSet getSpriteSet() {
+		return spriteSet;
+	}
+	
+	/**
+	 * Creates a static sprite and stores it in this entity's SpriteSet,
+	 * creating a SpriteSet if the entity doesn't have one yet.
+	 * 
+	 * Note that if the SpriteSet is shared, the sprite is added for every
+	 * entity using it.
+	 * 
+	 * @param key
+	 * @param frame
+	 * @return Handle of the new sprite
+	 */
+	public int addSprite(String key, BufferedImage frame) {
+		if (spriteSet == null) {
+			spriteSet = new SpriteSet();
+		}
+		return spriteSet.add(key, frame);
+	}
+	
+	/**
+	 * Creates an animated sprite and stores it in this entity's SpriteSet,
+	 * creating a SpriteSet if the entity doesn't have one yet.
+	 * 
+	 * @param key
+	 * @param frames
+	 * @param delays
+	 * @return Handle of the new sprite
+	 */
+	public int addSprite(String key, BufferedImage[] frames, long[] delays) {
+		if (spriteSet == null) {
+			spriteSet = new SpriteSet();
+		}
+		return spriteSet.add(key, frames, delays);
+	}
+	
+	/**
+	 * Creates a static sprite from a texture and stores it in this entity's
+	 * SpriteSet, creating a SpriteSet if the entity doesn't have one yet.
 	 * 
 	 * @param key
 	 * @param frame
+	 * @return Handle of the new sprite
 	 */
-	public void addSprite(String key, BufferedImage frame) {
-		Sprite newSprite = new Sprite(frame);
-		sprites.put(key, newSprite);
+	public int addSprite(String key, Texture frame) {
+		if (spriteSet == null) {
+			spriteSet = new SpriteSet();
+		}
+		return spriteSet.add(key, frame);
 	}
 	
 	/**
-	 * Creates an animated sprite and stores it in this sprite map
+	 * Creates an animated sprite from textures and stores it in this entity's
+	 * SpriteSet, creating a SpriteSet if the entity doesn't have one yet.
 	 * 
 	 * @param key
 	 * @param frames
 	 * @param delays
+	 * @return Handle of the new sprite
 	 */
-	public void addSprite(String key, BufferedImage[] frames, long[] delays) {
-		Sprite newSprite = new Sprite(frames, delays);
-		sprites.put(key, newSprite);
+	public int addSprite(String key, Texture[] frames, long[] delays) {
+		if (spriteSet == null) {
+			spriteSet = new SpriteSet();
+		}
+		return spriteSet.add(key, frames, delays);
 	}
 	
 	/**
-	 * Changes to the sprite in the stored sprite map with the given key.
-	 * Resets any animation counters on the current sprite before changing.
+	 * Changes to the sprite with the given handle in this entity's SpriteSet.
+	 * Resets the animation counters when the sprite changes.
 	 * 
 	 * If the current sprite is already set to the requested sprite, no 
 	 * change is made, making this safe to call repeatedly for an animated 
 	 * sprite.
 	 * 
+	 * @param handle Sprite handle, or NO_SPRITE to display nothing
+	 */
+	public void setSprite(int handle) {
+		if (handle != curSprite) {
+			curSprite = handle;
+			curFrame = 0;
+			curTime = 0;
+			redraw = true;
+		}
+	}
+	
+	/**
+	 * Changes to the sprite with the given name. This looks the handle up
+	 * in the SpriteSet every call; entities that change sprites often should
+	 * look up their handles once and use setSprite(int) instead.
+	 * 
 	 * @param key
 	 */
 	public void setSprite(String key) {
-		if (!key.equals(curSpriteKey)) {
-			if (curSprite != null) {
-				curSprite.reset();
+		setSprite(spriteSet == null ? NO_SPRITE : spriteSet.getHandle(key));
+	}
+	
+	/**
+	 * Sets the collision layers this entity is on. An entity with a category of 0
+	 * never collides with anything.
+	 * 
+	 * @param category	Bitmask of layers
+	 */
+	public void setCollisionCategory(int category) {
+		int oldCategory = collisionCategory;
+		collisionCategory = category;
+		if (engine != null) {
+			engine.changeCategory(this, oldCategory);
+		}
+	}
+	
+	public int getCollisionCategory() {
+		return collisionCategory;
+	}
+	
+	/**
+	 * Sets the collision layers this entity can collide with.
+	 * 
+	 * @param filter	Bitmask of layers
+	 */
+	public void setCollisionFilter(int filter) {
+		collisionFilter = filter;
+	}
+	
+	public int getCollisionFilter() {
+		return collisionFilter;
+	}
+	
+	/**
+	 * Turns contact events on or off. Entities with contact events on are checked
+	 * against each other once per frame by the engine, and onCollision is called
+	 * when they start touching, keep touching, or stop touching. This is much
+	 * cheaper than every entity calling checkCollision on its own.
+	 * 
+	 * @param enabled
+	 */
+	public void setContactEvents(boolean enabled) {
+		if (enabled != contactEvents) {
+			contactEvents = enabled;
+			if (engine != null) {
+				engine.changeContactEvents(this);
 			}
-			curSprite = sprites.get(key);
-			curSpriteKey = key;
 		}
 	}
 	
+	public boolean hasContactEvents() {
+		return contactEvents;
+	}
+	
+	/**
+	 * Called by the engine when this entity and another entity with contact
+	 * events on start touching, keep touching, or stop touching. Does nothing by
+	 * default.
+	 * 
+	 * @param other	The entity being touched
+	 * @param state	COLLISION_ENTER, COLLISION_STAY, or COLLISION_EXIT
+	 */
+	public void onCollision(Entity other, int state) {
+		
+	}
+	
+	/**
+	 * Returns a hash of this entity's state, used by Engine.checksum to detect
+	 * when two runs of the same game diverge. Subclasses with extra state that
+	 * affects the game should combine it with the superclass hash.
+	 * 
+	 * @return
+	 */
+	public int stateHash() {
+		int hash = getClass().getName().hashCode();
+		hash = 31 * hash + x;
+		hash = 31 * hash + y;
+		hash = 31 * hash + z;
+		hash = 31 * hash + width;
+		hash = 31 * hash + height;
+		hash = 31 * hash + (flipX ? 1 : 0) + (flipY ? 2 : 0);
+		hash = 31 * hash + curSprite;
+		hash = 31 * hash + curFrame;
+		hash = 31 * hash + (int) (curTime ^ (curTime >>> 32));
+		
+		return hash;
+	}
+	
+	/**
+	 * Writes the entity's position, box, and sprite playback state. Subclasses
+	 * with extra state should call the superclass version first.
+	 */
+	public void writeState(StateBuffer buffer) {
+		buffer.writeInt(x);
+		buffer.writeInt(y);
+		buffer.writeInt(z);
+		buffer.writeInt(width);
+		buffer.writeInt(height);
+		buffer.writeByte((flipX ? 1 : 0) | (flipY ? 2 : 0));
+		buffer.writeInt(curSprite);
+		buffer.writeInt(curFrame);
+		buffer.writeLong(curTime);
+		
+		// Stored relative to the frame so that it doesn't change between snapshots
+		buffer.writeLong(engine.getFrameTime() - processStartTime);
+	}
+	
+	/**
+	 * Reads the state written by writeState.
+	 */
+	public void readState(StateBuffer buffer) {
+		x = buffer.readInt();
+		y = buffer.readInt();
+		z = buffer.readInt();
+		width = buffer.readInt();
+		height = buffer.readInt();
+		int flips = buffer.readByte();
+		flipX = (flips & 1) != 0;
+		flipY = (flips & 2) != 0;
+		curSprite = buffer.readInt();
+		curFrame = buffer.readInt();
+		curTime = buffer.readLong();
+		processStartTime = engine.getFrameTime() - buffer.readLong();
+		redraw = true;
+	}
+	
 	/**
 	 * Used for sorting entities in drawing order based on the z value.
 	 */
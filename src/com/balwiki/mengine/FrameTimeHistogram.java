@@ -0,0 +1,88 @@
+package com.balwiki.mengine;
+
+import java.io.PrintStream;
+
+/**
+ * Records how long frames take and reports the distribution. Frame times are
+ * counted in fixed buckets of 10 microseconds up to 100 milliseconds; anything
+ * slower is counted in the last bucket. Recording a frame doesn't allocate.
+ * 
+ * @author Michael Kelly
+ */
+public class FrameTimeHistogram {
+	private static final long BUCKET_NANOS = 10000;
+	private static final int BUCKETS = 10000;
+	
+	private final int[] counts = new int[BUCKETS];
+	private int frames = 0;
+	private long totalNanos = 0;
+	private long maxNanos = 0;
+	
+	/**
+	 * Adds a frame to the histogram.
+	 * 
+	 * @param nanos	How long the frame took, in nanoseconds
+	 */
+	public void add(long nanos) {
+		int bucket = (int) Math.min(nanos / BUCKET_NANOS, BUCKETS - 1);
+		counts[bucket]++;
+		frames++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+	}
+	
+	public int getFrameCount() {
+		return frames;
+	}
+	
+	/**
+	 * Returns the average frame time in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getMean() {
+		return frames == 0 ? 0 : totalNanos / frames;
+	}
+	
+	public long getMax() {
+		return maxNanos;
+	}
+	
+	/**
+	 * Returns the frame time that the given fraction of frames were at or below,
+	 * rounded up to the end of its bucket.
+	 * 
+	 * @param fraction	Between 0 and 1, such as 0.99 for the 99th percentile
+	 * @return			Frame time in nanoseconds
+	 */
+	public long getPercentile(double fraction) {
+		long target = (long) Math.ceil(frames * fraction);
+		long seen = 0;
+		for (int k = 0; k < BUCKETS; k++) {
+			seen += counts[k];
+			if (seen >= target && seen > 0) {
+				return Math.min((k + 1) * BUCKET_NANOS, maxNanos);
+			}
+		}
+		
+		return maxNanos;
+	}
+	
+	/**
+	 * Prints a summary of the frame times.
+	 * 
+	 * @param out
+	 */
+	public void report(PrintStream out) {
+		out.println("frames: " + frames);
+		out.println("mean:   " + formatMillis(getMean()));
+		out.println("p50:    " + formatMillis(getPercentile(0.50)));
+		out.println("p90:    " + formatMillis(getPercentile(0.90)));
+		out.println("p99:    " + formatMillis(getPercentile(0.99)));
+		out.println("max:    " + formatMillis(maxNanos));
+	}
+	
+	private static String formatMillis(long nanos) {
+		return String.format("%.3f ms", nanos / 1000000.0);
+	}
+}
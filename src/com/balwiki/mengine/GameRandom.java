@@ -0,0 +1,54 @@
+package com.balwiki.mengine;
+
+import java.util.Random;
+
+/**
+ * GameRandom is the engine's random number generator. It produces the same
+ * numbers as java.util.Random, but keeps its state in a plain field that can be
+ * saved and restored along with the rest of the world, so a rewound game draws
+ * the same numbers again when it replays the same frames.
+ * 
+ * Random caches every second Gaussian in state that can't be saved, so
+ * nextGaussian is overridden to compute each value from scratch.
+ * 
+ * @author Michael Kelly
+ */
+public class GameRandom extends Random {
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+	
+	private long state;
+	
+	GameRandom(long seed) {
+		super(seed);
+	}
+	
+	public void setSeed(long seed) {
+		state = (seed ^ MULTIPLIER) & MASK;
+	}
+	
+	protected int next(int bits) {
+		state = (state * MULTIPLIER + ADDEND) & MASK;
+		return (int) (state >>> (48 - bits));
+	}
+	
+	public double nextGaussian() {
+		double v1, v2, s;
+		do {
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1 || s == 0);
+		
+		return v1 * StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+	}
+	
+	long getState() {
+		return state;
+	}
+	
+	void setState(long newState) {
+		state = newState;
+	}
+}
@@ -0,0 +1,167 @@
+package com.balwiki.mengine;
+
+/**
+ * Input is a snapshot of the keyboard for a single frame. It is rebuilt by
+ * the engine at the start of each step from the events queued since the
+ * previous step, and does not change while the frame is being processed.
+ * 
+ * Besides which keys are down, it records which keys were pressed or released
+ * during the frame, so a tap shorter than a frame is still seen as a press
+ * (and a release). The individual events are also kept in the order they
+ * happened for games that care about ordering within a frame.
+ * 
+ * Key states are stored in bitsets indexed by KeyEvent.VK integer values.
+ * 
+ * @author Michael Kelly
+ */
+public class Input {
+	/**
+	 * Number of key codes tracked. Events for codes outside of this range
+	 * are ignored.
+	 */
+	public static final int KEY_COUNT = 65536;
+	
+	private final long[] down = new long[KEY_COUNT / 64];
+	private final long[] pressed = new long[KEY_COUNT / 64];
+	private final long[] released = new long[KEY_COUNT / 64];
+	
+	private int[] eventCodes = new int[16];
+	private boolean[] eventDowns = new boolean[16];
+	private long[] eventTimes = new long[16];
+	private int eventCount = 0;
+	
+	/**
+	 * Returns true if the key is down at the end of this frame.
+	 * 
+	 * @param code
+	 * @return
+	 */
+	public boolean isDown(int code) {
+		return test(down, code);
+	}
+	
+	/**
+	 * Returns true if the key went down during this frame, even if it was
+	 * released again before the frame started.
+	 * 
+	 * @param code
+	 * @return
+	 */
+	public boolean wasPressed(int code) {
+		return test(pressed, code);
+	}
+	
+	/**
+	 * Returns true if the key went up during this frame.
+	 * 
+	 * @param code
+	 * @return
+	 */
+	public boolean wasReleased(int code) {
+		return test(released, code);
+	}
+	
+	/**
+	 * Returns the number of keyboard events that happened during this frame.
+	 * 
+	 * @return
+	 */
+	public int getEventCount() {
+		return eventCount;
+	}
+	
+	/**
+	 * Returns the key code of the given event. Events are numbered in the
+	 * order they happened.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public int getEventCode(int index) {
+		return eventCodes[index];
+	}
+	
+	/**
+	 * Returns true if the given event was a key press, false if it was a
+	 * release.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public boolean isEventDown(int index) {
+		return eventDowns[index];
+	}
+	
+	/**
+	 * Returns the time of the given event in milliseconds of game time, on the
+	 * same clock as Engine.getFrameTime. Replays reproduce these times exactly.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public long getEventTime(int index) {
+		return eventTimes[index];
+	}
+	
+	/**
+	 * Starts a new frame, clearing the pressed and released keys and the
+	 * events of the previous frame. Only the words touched by last frame's
+	 * events are cleared.
+	 */
+	void beginFrame() {
+		for (int k = 0; k < eventCount; k++) {
+			int word = eventCodes[k] >>> 6;
+			pressed[word] = 0;
+			released[word] = 0;
+		}
+		eventCount = 0;
+	}
+	
+	/**
+	 * Applies a keyboard event to the snapshot. Repeated presses of a key that
+	 * is already down (such as from key repeat) don't count as new presses.
+	 * 
+	 * @param code
+	 * @param isDown
+	 * @param time
+	 */
+	void addEvent(int code, boolean isDown, long time) {
+		if (code < 0 || code >= KEY_COUNT) {
+			return;
+		}
+		
+		if (eventCount == eventCodes.length) {
+			int[] newCodes = new int[eventCount * 2];
+			boolean[] newDowns = new boolean[eventCount * 2];
+			long[] newTimes = new long[eventCount * 2];
+			System.arraycopy(eventCodes, 0, newCodes, 0, eventCount);
+			System.arraycopy(eventDowns, 0, newDowns, 0, eventCount);
+			System.arraycopy(eventTimes, 0, newTimes, 0, eventCount);
+			eventCodes = newCodes;
+			eventDowns = newDowns;
+			eventTimes = newTimes;
+		}
+		eventCodes[eventCount] = code;
+		eventDowns[eventCount] = isDown;
+		eventTimes[eventCount] = time;
+		eventCount++;
+		
+		int word = code >>> 6;
+		long bit = 1L << code;
+		if (isDown && (down[word] & bit) == 0) {
+			down[word] |= bit;
+			pressed[word] |= bit;
+		} else if (!isDown && (down[word] & bit) != 0) {
+			down[word] &= ~bit;
+			released[word] |= bit;
+		}
+	}
+	
+	private static boolean test(long[] bits, int code) {
+		if (code < 0 || code >= KEY_COUNT) {
+			return false;
+		}
+		
+		return (bits[code >>> 6] & (1L << code)) != 0;
+	}
+}
@@ -0,0 +1,158 @@
+package com.balwiki.mengine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * InputQueue passes keyboard events from the AWT event thread to the game
+ * thread. It is a lock-free ring buffer that supports exactly one producer
+ * (the AWT event thread) and one consumer (the game thread).
+ * 
+ * Events are stored in preallocated arrays, so adding and draining events
+ * does not create any garbage. The producer publishes each event by
+ * advancing the tail counter, and the consumer frees slots by advancing the
+ * head counter; the atomic counters provide the memory barriers needed for
+ * the event data to be visible on the other thread.
+ * 
+ * If the game thread falls so far behind that the queue fills up, events
+ * aren't dropped. Instead, the latest up or down state of each key is kept in
+ * a pair of bitsets until the game thread catches up, and the consumer applies
+ * them after the queued events. Presses and releases that cancel each other
+ * out during the overflow are lost, but no key is left stuck down or up.
+ * 
+ * @author Michael Kelly
+ */
+public class InputQueue {
+	private final int[] codes;
+	private final boolean[] downs;
+	private final long[] times;
+	private final int mask;
+	
+	// Index of the next event to read, only advanced by the consumer
+	private final AtomicLong head = new AtomicLong();
+	
+	// Index of the next slot to write, only advanced by the producer
+	private final AtomicLong tail = new AtomicLong();
+	
+	// Keys with an event waiting in the overflow bitsets, and their latest state.
+	// Pending bits are set by the producer and cleared by the consumer, while the
+	// down bits are only written by the producer.
+	private final AtomicLongArray overflowPending = new AtomicLongArray(Input.KEY_COUNT / 64);
+	private final AtomicLongArray overflowDown = new AtomicLongArray(Input.KEY_COUNT / 64);
+	private final AtomicInteger overflowKeys = new AtomicInteger();
+	private volatile long overflowTime;
+	
+	/**
+	 * Creates a queue holding at least the given number of events. The
+	 * capacity is rounded up to a power of two.
+	 * 
+	 * @param capacity
+	 */
+	public InputQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		codes = new int[size];
+		downs = new boolean[size];
+		times = new long[size];
+		mask = size - 1;
+	}
+	
+	/**
+	 * Adds an event to the queue. Must only be called from the producer thread.
+	 * 
+	 * The queue only fills up if the game thread stops draining it for many
+	 * frames. In that case the event is folded into the key's overflow state
+	 * rather than blocking the producer, and so are all events after it until
+	 * the consumer has applied the overflow, so events stay in order.
+	 * 
+	 * @param code	KeyEvent.VK code of the key
+	 * @param down	True if the key was pressed, false if it was released
+	 * @param time	Time of the event in milliseconds
+	 * @return		True if the event was queued, false if it went to the overflow
+	 */
+	public boolean offer(int code, boolean down, long time) {
+		long t = tail.get();
+		if (t - head.get() > mask || overflowKeys.get() > 0) {
+			overflow(code, down, time);
+			return false;
+		}
+		
+		int index = (int) t & mask;
+		codes[index] = code;
+		downs[index] = down;
+		times[index] = time;
+		tail.lazySet(t + 1);
+		
+		return true;
+	}
+	
+	/**
+	 * Moves every queued event, in order, into the given input snapshot,
+	 * followed by the latest state of any keys that overflowed. Must only be
+	 * called from the consumer thread.
+	 * 
+	 * @param input
+	 */
+	public void drainTo(Input input) {
+		long h = head.get();
+		long t = tail.get();
+		
+		for (; h < t; h++) {
+			int index = (int) h & mask;
+			input.addEvent(codes[index], downs[index], times[index]);
+		}
+		
+		head.lazySet(h);
+		
+		if (overflowKeys.get() > 0) {
+			drainOverflow(input);
+		}
+	}
+	
+	/**
+	 * Records the latest state of a key while the queue is overflowing.
+	 */
+	private void overflow(int code, boolean down, long time) {
+		if (code < 0 || code >= Input.KEY_COUNT) {
+			return;
+		}
+		
+		int word = code >>> 6;
+		long bit = 1L << code;
+		long state = overflowDown.get(word);
+		overflowDown.set(word, down ? state | bit : state & ~bit);
+		overflowTime = time;
+		
+		while (true) {
+			long pending = overflowPending.get(word);
+			if ((pending & bit) != 0) {
+				return;
+			}
+			if (overflowPending.compareAndSet(word, pending, pending | bit)) {
+				overflowKeys.incrementAndGet();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Applies the latest state of every key that overflowed.
+	 */
+	private void drainOverflow(Input input) {
+		long time = overflowTime;
+		for (int word = 0; word < overflowPending.length(); word++) {
+			if (overflowPending.get(word) == 0) {
+				continue;
+			}
+			
+			long pending = overflowPending.getAndSet(word, 0);
+			long state = overflowDown.get(word);
+			while (pending != 0) {
+				int bit = Long.numberOfTrailingZeros(pending);
+				pending &= pending - 1;
+				input.addEvent((word << 6) | bit, (state & (1L << bit)) != 0, time);
+				overflowKeys.decrementAndGet();
+			}
+		}
+	}
+}
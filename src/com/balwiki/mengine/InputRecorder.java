@@ -0,0 +1,149 @@
+package com.balwiki.mengine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * InputRecorder writes a compact binary log of a play session that can be
+ * replayed later with Replay. The log starts with the random seed and FPS of
+ * the engine, followed by one record per frame containing the keyboard events
+ * of that frame, in order, and the world checksum at the end of the frame.
+ * Each event stores how long before the frame it happened, so replayed events
+ * get the same times as the recorded ones.
+ * 
+ * Numbers are written as variable-length integers, so a frame without any
+ * input only takes five bytes.
+ * 
+ * Recording is usually stopped by the window closing, which happens on a
+ * different thread than the game loop, so frames and closing are synchronized.
+ * 
+ * @author Michael Kelly
+ */
+public class InputRecorder {
+	static final int MAGIC = 0x4D524543; // "MREC"
+	static final int VERSION = 2;
+	
+	private DataOutputStream out;
+	private int frames = 0;
+	
+	/**
+	 * Creates a recorder and writes the log header.
+	 * 
+	 * @param stream	Stream to write the log to
+	 * @param seed		Random seed of the engine being recorded
+	 * @param fps		FPS of the engine being recorded
+	 * @throws IOException
+	 */
+	public InputRecorder(OutputStream stream, long seed, int fps) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(stream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(seed);
+		out.writeInt(fps);
+	}
+	
+	/**
+	 * Writes the input of a single frame and the checksum of the world after it.
+	 * Does nothing once the recorder has been closed.
+	 * 
+	 * @param input
+	 * @param frameTime	Game time of the frame
+	 * @param checksum
+	 * @throws IOException
+	 */
+	public synchronized void recordFrame(Input input, long frameTime, int checksum) throws IOException {
+		if (out == null) {
+			return;
+		}
+		
+		writeVarInt(out, input.getEventCount());
+		for (int k = 0; k < input.getEventCount(); k++) {
+			writeVarInt(out, (input.getEventCode(k) << 1) | (input.isEventDown(k) ? 1 : 0));
+			writeSignedVarLong(out, frameTime - input.getEventTime(k));
+		}
+		out.writeInt(checksum);
+		frames++;
+	}
+	
+	/**
+	 * Returns the number of frames recorded so far.
+	 * 
+	 * @return
+	 */
+	public synchronized int getFrameCount() {
+		return frames;
+	}
+	
+	/**
+	 * Flushes and closes the log. Frames recorded afterwards are ignored.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+	
+	/**
+	 * Writes a non-negative integer using 7 bits per byte, with the high bit
+	 * set on every byte except the last.
+	 */
+	static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+	
+	/**
+	 * Reads an integer written by writeVarInt.
+	 */
+	static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		
+		return value;
+	}
+	
+	/**
+	 * Writes a signed long as a variable-length integer, zigzag encoded so that
+	 * small negative numbers stay small.
+	 */
+	static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+		value = (value << 1) ^ (value >> 63);
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+	
+	/**
+	 * Reads a long written by writeSignedVarLong.
+	 */
+	static long readSignedVarLong(DataInput in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,226 @@
+package com.balwiki.mengine;
+
+import java.util.Random;
+
+/**
+ * A ParticleSystem handles large numbers of tiny, short-lived effects like
+ * sparks, dust, and explosions, which would be far too expensive as entities.
+ * 
+ * Particles are stored as parallel arrays of primitives with a fixed capacity,
+ * so emitting, moving, and removing them never allocates. A dead particle is
+ * removed by moving the last particle into its place. Particles are single
+ * pixels that are written straight into the engine's buffer after the entities
+ * are drawn, instead of going through Graphics one at a time.
+ * 
+ * Particles can optionally collide with the solid tiles of a Tilemap, in which
+ * case they either bounce off or die.
+ * 
+ * Systems are added to the world with Engine.addParticleSystem, and are updated
+ * and drawn by the engine every step. Particles are only meant for effects, and
+ * are not part of saved states or world checksums.
+ * 
+ * @author Michael Kelly
+ */
+public class ParticleSystem {
+	private final float[] px;
+	private final float[] py;
+	private final float[] vx;
+	private final float[] vy;
+	private final float[] life;
+	private final int[] color;
+	private int count = 0;
+	
+	/**
+	 * Acceleration applied to every particle along the Y axis, in pixels per
+	 * second per second.
+	 */
+	public float gravity = 0;
+	
+	/**
+	 * Fraction of their speed that particles keep when bouncing off a solid tile.
+	 * 0 means particles die when they hit a solid tile instead.
+	 */
+	public float bounce = 0;
+	
+	protected Tilemap collisionMap = null;
+	protected Engine engine;
+	
+	// Area covered by live particles after the last update, used by dirty rendering
+	private int minX;
+	private int minY;
+	private int maxX = -1;
+	private int maxY = -1;
+	
+	/**
+	 * Creates a system that can hold up to the given number of live particles.
+	 * 
+	 * @param capacity
+	 */
+	public ParticleSystem(int capacity) {
+		px = new float[capacity];
+		py = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		life = new float[capacity];
+		color = new int[capacity];
+	}
+	
+	/**
+	 * Makes particles collide with the solid tiles of the given tilemap. Pass null
+	 * to turn collision off.
+	 * 
+	 * @param map
+	 */
+	public void setCollisionMap(Tilemap map) {
+		collisionMap = map;
+	}
+	
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+	
+	/**
+	 * Returns the number of live particles.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * Emits a burst of particles from a point. Each particle gets a random direction
+	 * within the spread around the given angle, and a random speed between the
+	 * minimum and maximum. Particles past the system's capacity are dropped.
+	 * 
+	 * Randomness comes from the engine, so runs stay repeatable.
+	 * 
+	 * @param n			Number of particles
+	 * @param x			X position to emit from
+	 * @param y			Y position to emit from
+	 * @param angle		Direction in radians; 0 is right, PI / 2 is down
+	 * @param spread	Total width of the cone of directions, in radians
+	 * @param minSpeed	Minimum speed in pixels per second
+	 * @param maxSpeed	Maximum speed in pixels per second
+	 * @param lifetime	How long the particles live, in seconds
+	 * @param argb		Color of the particles
+	 */
+	public void emit(int n, float x, float y, float angle, float spread, float minSpeed, float maxSpeed, float lifetime, int argb) {
+		Random random = engine.getRandom();
+		n = Math.min(n, px.length - count);
+		
+		for (int k = 0; k < n; k++) {
+			double direction = angle + (random.nextFloat() - 0.5f) * spread;
+			float speed = minSpeed + random.nextFloat() * (maxSpeed - minSpeed);
+			
+			px[count] = x;
+			py[count] = y;
+			vx[count] = (float) Math.cos(direction) * speed;
+			vy[count] = (float) Math.sin(direction) * speed;
+			life[count] = lifetime;
+			color[count] = argb;
+			count++;
+		}
+	}
+	
+	/**
+	 * Moves every particle forward in time, removing the ones that died or hit a
+	 * solid tile.
+	 * 
+	 * @param dt	Time passed, in seconds
+	 */
+	public void update(float dt) {
+		float dvy = gravity * dt;
+		minX = Integer.MAX_VALUE;
+		minY = Integer.MAX_VALUE;
+		maxX = Integer.MIN_VALUE;
+		maxY = Integer.MIN_VALUE;
+		
+		int k = 0;
+		while (k < count) {
+			life[k] -= dt;
+			if (life[k] <= 0) {
+				remove(k);
+				continue;
+			}
+			
+			vy[k] += dvy;
+			float nx = px[k] + vx[k] * dt;
+			float ny = py[k] + vy[k] * dt;
+			
+			if (collisionMap != null && collisionMap.isSolidAt((int) Math.floor(nx), (int) Math.floor(ny))) {
+				if (bounce <= 0) {
+					remove(k);
+					continue;
+				}
+				
+				// Bounce off of whichever axis moved the particle into the tile
+				boolean hitX = collisionMap.isSolidAt((int) Math.floor(nx), (int) Math.floor(py[k]));
+				boolean hitY = collisionMap.isSolidAt((int) Math.floor(px[k]), (int) Math.floor(ny));
+				
+				// Neither axis alone is solid when the particle enters through the
+				// corner of a tile, so it bounces back on both
+				if (hitX || !hitY) {
+					vx[k] = -vx[k] * bounce;
+					nx = px[k];
+				}
+				if (hitY || !hitX) {
+					vy[k] = -vy[k] * bounce;
+					ny = py[k];
+				}
+			}
+			
+			px[k] = nx;
+			py[k] = ny;
+			
+			int ix = (int) nx;
+			int iy = (int) ny;
+			if (ix < minX) minX = ix;
+			if (ix > maxX) maxX = ix;
+			if (iy < minY) minY = iy;
+			if (iy > maxY) maxY = iy;
+			k++;
+		}
+	}
+	
+	/**
+	 * Writes every particle straight into an ARGB pixel array. Particles outside
+	 * the array are skipped.
+	 * 
+	 * @param pixels	Pixels of the buffer, one int per pixel, row by row
+	 * @param width		Width of the buffer
+	 * @param height	Height of the buffer
+	 */
+	public void draw(int[] pixels, int width, int height) {
+		for (int k = 0; k < count; k++) {
+			int x = (int) px[k];
+			int y = (int) py[k];
+			if (px[k] >= 0 && py[k] >= 0 && x < width && y < height) {
+				pixels[y * width + x] = color[k];
+			}
+		}
+	}
+	
+	/**
+	 * Adds the area covered by the particles to the dirty regions. Called by the
+	 * engine both before and after updating the system, so that particles are
+	 * erased from where they were and drawn where they are now.
+	 * 
+	 * @param regions
+	 */
+	void markDirty(DirtyRegions regions) {
+		if (maxX >= minX) {
+			regions.add(minX, minY, maxX - minX + 1, maxY - minY + 1);
+		}
+	}
+	
+	private void remove(int index) {
+		count--;
+		px[index] = px[count];
+		py[index] = py[count];
+		vx[index] = vx[count];
+		vy[index] = vy[count];
+		life[index] = life[count];
+		color[index] = color[count];
+	}
+}
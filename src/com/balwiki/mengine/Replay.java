@@ -0,0 +1,150 @@
+package com.balwiki.mengine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replay plays back a log written by InputRecorder on a headless engine, as
+ * fast as possible. It feeds each frame's recorded input into the engine,
+ * times every step, and compares the world checksum after each frame against
+ * the recorded one to catch runs that diverge.
+ * 
+ * Because the engine uses a virtual clock and the recorded seed, a replay
+ * does the same work as the original session, which makes real play
+ * sessions usable as repeatable benchmarks.
+ * 
+ * @author Michael Kelly
+ */
+public class Replay {
+	private DataInputStream in;
+	private long seed;
+	private int fps;
+	
+	private FrameTimeHistogram histogram = new FrameTimeHistogram();
+	private int[] checksums = new int[1024];
+	private int frames = 0;
+	private int divergedFrame = -1;
+	
+	/**
+	 * Opens a log and reads its header.
+	 * 
+	 * @param stream
+	 * @throws IOException If the stream isn't a recording this version can read
+	 */
+	public Replay(InputStream stream) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(stream));
+		if (in.readInt() != InputRecorder.MAGIC) {
+			throw new IOException("Not an input recording");
+		}
+		int version = in.readInt();
+		if (version != InputRecorder.VERSION) {
+			throw new IOException("Unsupported recording version " + version);
+		}
+		seed = in.readLong();
+		fps = in.readInt();
+	}
+	
+	/**
+	 * Seeds and initializes the given engine, then steps it once for every
+	 * recorded frame. The engine must have been created headless and not yet
+	 * initialized, with the same FPS as the recording.
+	 * 
+	 * @param engine
+	 * @throws IOException
+	 * @throws IllegalStateException If a frame has more events than the engine's
+	 * 								 input queue can hold
+	 */
+	public void run(Engine engine) throws IOException {
+		if (engine.fps != fps) {
+			throw new IllegalArgumentException("Recording is at " + fps + " FPS, engine is at " + engine.fps);
+		}
+		
+		engine.setSeed(seed);
+		engine.initialize();
+		
+		while (true) {
+			int eventCount;
+			try {
+				eventCount = InputRecorder.readVarInt(in);
+			} catch (EOFException e) {
+				break;
+			}
+			
+			// Event times are stored relative to the frame they'll be read in
+			long time = engine.getFrameTime() + engine.msPerFrame;
+			for (int k = 0; k < eventCount; k++) {
+				int event = InputRecorder.readVarInt(in);
+				long age = InputRecorder.readSignedVarLong(in);
+				if (!engine.inputQueue.offer(event >>> 1, (event & 1) != 0, time - age)) {
+					throw new IllegalStateException("Frame " + frames + " has " + eventCount
+							+ " events, more than the engine's input queue holds");
+				}
+			}
+			int expected = in.readInt();
+			
+			long start = System.nanoTime();
+			engine.step();
+			histogram.add(System.nanoTime() - start);
+			
+			int checksum = engine.checksum();
+			if (checksum != expected && divergedFrame == -1) {
+				divergedFrame = frames;
+			}
+			addChecksum(checksum);
+		}
+		
+		in.close();
+	}
+	
+	public long getSeed() {
+		return seed;
+	}
+	
+	public int getFps() {
+		return fps;
+	}
+	
+	public FrameTimeHistogram getHistogram() {
+		return histogram;
+	}
+	
+	/**
+	 * Returns the number of frames replayed.
+	 * 
+	 * @return
+	 */
+	public int getFrameCount() {
+		return frames;
+	}
+	
+	/**
+	 * Returns the world checksum after the given frame of the replay.
+	 * 
+	 * @param frame
+	 * @return
+	 */
+	public int getChecksum(int frame) {
+		return checksums[frame];
+	}
+	
+	/**
+	 * Returns the first frame whose checksum didn't match the recording.
+	 * 
+	 * @return Frame number, or -1 if the replay matched the whole recording
+	 */
+	public int getDivergedFrame() {
+		return divergedFrame;
+	}
+	
+	private void addChecksum(int checksum) {
+		if (frames == checksums.length) {
+			int[] newChecksums = new int[frames * 2];
+			System.arraycopy(checksums, 0, newChecksums, 0, frames);
+			checksums = newChecksums;
+		}
+		checksums[frames++] = checksum;
+	}
+}
@@ -0,0 +1,27 @@
+package com.balwiki.mengine;
+
+/**
+ * Saveable objects can write their state into a StateBuffer and restore it
+ * later. This is what the engine uses for quick-saves and for rewinding
+ * through the snapshots kept in a SnapshotRing.
+ * 
+ * readState must read exactly what writeState wrote, in the same order.
+ * Neither should allocate, since they may run every frame.
+ * 
+ * @author Michael Kelly
+ */
+public interface Saveable {
+	/**
+	 * Appends this object's state to the buffer.
+	 * 
+	 * @param buffer
+	 */
+	public void writeState(StateBuffer buffer);
+	
+	/**
+	 * Restores this object's state from the buffer.
+	 * 
+	 * @param buffer
+	 */
+	public void readState(StateBuffer buffer);
+}
@@ -15,6 +15,9 @@ public class Screen extends JComponent {
 
 	private BufferedImage backbuffer;
 	
+	// Created once and reused, since getGraphics creates a new object every call
+	private Graphics backGraphics;
+	
 	/**
 	 * Creates the screen. The arguments are the scaled width and height.
 	 * @param width
@@ -29,6 +32,7 @@ public class Screen extends JComponent {
 		setDoubleBuffered(true);
 		
 		backbuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		backGraphics = backbuffer.getGraphics();
 	}
 	
 	/**
@@ -40,7 +44,7 @@ public class Screen extends JComponent {
 	public void drawBuffer(BufferedImage buffer) {
 		// The scaling occurs here because the source dimensions are unscaled,
 		// but the backbuffer's dimensions are scaled.
-		backbuffer.getGraphics().drawImage(
+		backGraphics.drawImage(
 				buffer, 
 				0, 
 				0, 
@@ -57,6 +61,41 @@ public class Screen extends JComponent {
 		repaint();
 	}
 
+	/**
+	 * Draws only the given regions of the screen buffer onto the back buffer,
+	 * and only asks the GUI to repaint those regions. Used by the engine when
+	 * dirty rendering is enabled.
+	 * 
+	 * @param buffer
+	 * @param regions	Regions to copy, in unscaled buffer coordinates
+	 */
+	public void drawBuffer(BufferedImage buffer, DirtyRegions regions) {
+		int scaleX = backbuffer.getWidth() / buffer.getWidth();
+		int scaleY = backbuffer.getHeight() / buffer.getHeight();
+		
+		for (int k = 0; k < regions.size(); k++) {
+			int x = regions.getX(k);
+			int y = regions.getY(k);
+			int right = x + regions.getWidth(k);
+			int bottom = y + regions.getHeight(k);
+			
+			backGraphics.drawImage(
+					buffer, 
+					x * scaleX, 
+					y * scaleY, 
+					right * scaleX, 
+					bottom * scaleY, 
+					x, 
+					y, 
+					right, 
+					bottom, 
+					null
+			);
+			
+			repaint(x * scaleX, y * scaleY, (right - x) * scaleX, (bottom - y) * scaleY);
+		}
+	}
+
 	/**
 	 * Called by repaint to paint the backbuffer to the graphics object displayed
 	 * in the GUI.
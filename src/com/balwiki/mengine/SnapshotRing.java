@@ -0,0 +1,193 @@
+package com.balwiki.mengine;
+
+/**
+ * SnapshotRing keeps the state of the world for each of the last few frames,
+ * so the game can be rewound, or rolled back to test netcode.
+ * 
+ * Every few frames a keyframe is stored with the full state of the world. The
+ * frames in between only store how they differ from the last keyframe: runs of
+ * bytes that are unchanged are skipped, and only the changed bytes are kept.
+ * Since most of the world changes little between frames, several seconds of
+ * history fit in a few megabytes.
+ * 
+ * All buffers are allocated up front and reused, so capturing and restoring
+ * frames doesn't allocate once the buffers have grown to the size of the world.
+ * 
+ * @author Michael Kelly
+ */
+public class SnapshotRing {
+	private final StateBuffer[] frames;
+	private final StateBuffer[] keyframes;
+	private final int keyframeInterval;
+	
+	// Scratch buffers for the current state and for rebuilding old states
+	private final StateBuffer current;
+	private final StateBuffer restored;
+	
+	// Number of the next frame to be captured
+	private long frameCount = 0;
+	
+	// Number of the oldest frame whose delta and keyframe haven't been overwritten
+	private long oldestFrame = 0;
+	
+	/**
+	 * Creates a ring holding the given number of frames.
+	 * 
+	 * @param capacity			Number of frames of history to keep
+	 * @param keyframeInterval	Number of frames between keyframes
+	 * @param stateSize			Expected size in bytes of the world state, used
+	 * 							to size the buffers
+	 */
+	public SnapshotRing(int capacity, int keyframeInterval, int stateSize) {
+		this.keyframeInterval = keyframeInterval;
+		
+		// There must always be a keyframe for the oldest delta frame in the ring
+		frames = new StateBuffer[capacity];
+		keyframes = new StateBuffer[(capacity + keyframeInterval - 1) / keyframeInterval + 1];
+		for (int k = 0; k < frames.length; k++) {
+			frames[k] = new StateBuffer(stateSize / 8);
+		}
+		for (int k = 0; k < keyframes.length; k++) {
+			keyframes[k] = new StateBuffer(stateSize);
+		}
+		
+		current = new StateBuffer(stateSize);
+		restored = new StateBuffer(stateSize);
+	}
+	
+	/**
+	 * Saves the current state of the engine as the newest frame in the ring,
+	 * overwriting the oldest frame if the ring is full.
+	 * 
+	 * @param engine
+	 */
+	public void capture(Engine engine) {
+		long frame = frameCount++;
+		StateBuffer keyframe = keyframes[(int) ((frame / keyframeInterval) % keyframes.length)];
+		StateBuffer slot = frames[(int) (frame % frames.length)];
+		
+		// Overwrites the frame from capacity frames back
+		oldestFrame = Math.max(oldestFrame, frame - frames.length + 1);
+		
+		if (frame % keyframeInterval == 0) {
+			// Frames that were encoded against the keyframe being replaced are lost
+			long lostGroup = frame / keyframeInterval - keyframes.length;
+			oldestFrame = Math.max(oldestFrame, (lostGroup + 1) * keyframeInterval);
+			
+			keyframe.clear();
+			engine.saveState(keyframe);
+			slot.clear();
+		} else {
+			current.clear();
+			engine.saveState(current);
+			encodeDelta(current, keyframe, slot);
+		}
+	}
+	
+	/**
+	 * Restores the engine to the state of an earlier frame. Frames newer than the
+	 * restored frame are dropped from the ring, so capturing continues from there.
+	 * Frames older than the restored frame stay available until capturing
+	 * overwrites them again.
+	 * 
+	 * @param engine
+	 * @param framesBack	0 restores the newest frame, 1 the frame before it, etc.
+	 */
+	public void restore(Engine engine, int framesBack) {
+		if (framesBack < 0 || framesBack >= getFrameCount()) {
+			throw new IllegalArgumentException("Only " + getFrameCount() + " frames of history available");
+		}
+		
+		long frame = frameCount - 1 - framesBack;
+		StateBuffer keyframe = keyframes[(int) ((frame / keyframeInterval) % keyframes.length)];
+		
+		if (frame % keyframeInterval == 0) {
+			engine.loadState(keyframe);
+		} else {
+			decodeDelta(frames[(int) (frame % frames.length)], keyframe, restored);
+			engine.loadState(restored);
+		}
+		
+		frameCount = frame + 1;
+	}
+	
+	/**
+	 * Returns the number of frames that can currently be restored.
+	 * 
+	 * @return
+	 */
+	public int getFrameCount() {
+		return (int) (frameCount - oldestFrame);
+	}
+	
+	/**
+	 * Returns the number of bytes used by the stored frames and keyframes.
+	 * 
+	 * @return
+	 */
+	public long getUsedBytes() {
+		long bytes = 0;
+		for (int k = 0; k < frames.length; k++) {
+			bytes += frames[k].getLength();
+		}
+		for (int k = 0; k < keyframes.length; k++) {
+			bytes += keyframes[k].getLength();
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Encodes state as a difference from base. The delta starts with the length
+	 * of the state, followed by pairs of runs: the number of bytes that are the
+	 * same as in base, then the number of bytes that differ followed by those
+	 * bytes. Short matching runs are folded into the differing bytes, since each
+	 * run costs at least a byte to encode.
+	 */
+	private static void encodeDelta(StateBuffer state, StateBuffer base, StateBuffer delta) {
+		byte[] s = state.getData();
+		byte[] b = base.getData();
+		int length = state.getLength();
+		int common = Math.min(length, base.getLength());
+		
+		delta.clear();
+		delta.writeVarInt(length);
+		
+		int pos = 0;
+		while (pos < length) {
+			int same = pos;
+			while (same < common && s[same] == b[same]) {
+				same++;
+			}
+			
+			int diff = same;
+			while (diff < length && (diff + 1 >= common || s[diff] != b[diff] || s[diff + 1] != b[diff + 1])) {
+				diff++;
+			}
+			
+			delta.writeVarInt(same - pos);
+			delta.writeVarInt(diff - same);
+			delta.writeBytes(s, same, diff - same);
+			pos = diff;
+		}
+	}
+	
+	/**
+	 * Rebuilds a state from its delta and the base it was encoded against.
+	 */
+	private static void decodeDelta(StateBuffer delta, StateBuffer base, StateBuffer state) {
+		byte[] b = base.getData();
+		
+		delta.rewind();
+		state.clear();
+		int length = delta.readVarInt();
+		
+		while (state.getLength() < length) {
+			int same = delta.readVarInt();
+			state.writeBytes(b, state.getLength(), same);
+			
+			int diff = delta.readVarInt();
+			delta.readBytesInto(state, diff);
+		}
+	}
+}
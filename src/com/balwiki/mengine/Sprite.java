@@ -6,18 +6,26 @@ import java.awt.image.BufferedImage;
  * A Sprite is the visual representation of an Entity. Sprites
  * can be static or animated.
  * 
- * Sprites are usually created by the addSprite methods in the
- * Entity class.
+ * Sprites are immutable definitions: they only hold the frames and
+ * delays of an animation. Playback state (the current frame and how
+ * long it has been shown) is stored by the Entity displaying the
+ * sprite, so a single Sprite can be shared by any number of entities.
+ * 
+ * Frames are stored as Textures, so a sprite whose frames come from a
+ * TextureCache only holds its images in memory while the cache keeps them.
+ * 
+ * Sprites are usually created through a SpriteSet, or by the addSprite
+ * methods in the Entity class.
  * 
  * @author Michael Kelly
  */
 public class Sprite {
 
-	private BufferedImage[] frames;
+	private Texture[] frames;
 	private long[] delays;
 	
-	private long curTime;
-	private int curFrame;
+	// Collision masks for each frame and flip, built the first time they're needed
+	private CollisionMask[] masks;
 	
 	/**
 	 * Creates an animated sprite using the specified images
@@ -26,9 +34,20 @@ public class Sprite {
 	 * @param nFrames Array of images for each frame of the animation.
 	 * @param nDelays Array of time delays for each frame in milliseconds.
 	 */
-	public Sprite(BufferedImage[] nFrames, long[] nDelays) {
+	public Sprite(Texture[] nFrames, long[] nDelays) {
 		frames = nFrames;
 		delays = nDelays;
+		masks = new CollisionMask[frames.length * 4];
+	}
+	
+	/**
+	 * Creates an animated sprite from images that are kept in memory.
+	 * 
+	 * @param nFrames Array of images for each frame of the animation.
+	 * @param nDelays Array of time delays for each frame in milliseconds.
+	 */
+	public Sprite(BufferedImage[] nFrames, long[] nDelays) {
+		this(wrap(nFrames), nDelays);
 	}
 	
 	/**
@@ -36,39 +55,79 @@ public class Sprite {
 	 * 
 	 * @param frame
 	 */
-	public Sprite(BufferedImage frame) {
-		frames = new BufferedImage[] { frame };
+	public Sprite(Texture frame) {
+		frames = new Texture[] { frame };
 		delays = new long[] {Long.MAX_VALUE};
+		masks = new CollisionMask[4];
 	}
 	
 	/**
-	 * Advances the time counter. If enough time has passed, the
-	 * sprite changes to the next image in the animation.
+	 * Creates a static sprite from an image that is kept in memory.
 	 * 
-	 * @param time
+	 * @param frame
 	 */
-	public void addTime(long time) {
-		curTime += time;
-		if (curTime > delays[curFrame]) {
-			curTime -= delays[curFrame];
-			curFrame = (curFrame + 1) % frames.length;
-		}
+	public Sprite(BufferedImage frame) {
+		this(new Texture(frame));
 	}
 	
 	/**
-	 * Grabs the current frame of the animation or static sprite
+	 * Grabs the given frame of the animation or static sprite, loading
+	 * it if needed.
 	 * 
+	 * @param index
 	 * @return
 	 */
-	public BufferedImage getFrame() {
-		return frames[curFrame];
+	public BufferedImage getFrame(int index) {
+		return frames[index].getImage();
 	}
 	
 	/**
-	 * Resets the animation counters to an initial state.
+	 * Returns how long the given frame is displayed, in milliseconds.
+	 * 
+	 * @param index
+	 * @return
 	 */
-	public void reset() {
-		curTime = 0;
-		curFrame = 0;
+	public long getDelay(int index) {
+		return delays[index];
+	}
+	
+	/**
+	 * Returns the number of frames in the animation. Static sprites
+	 * have a single frame.
+	 * 
+	 * @return
+	 */
+	public int getFrameCount() {
+		return frames.length;
+	}
+	
+	/**
+	 * Returns the collision mask for the given frame, flipped the same way the
+	 * frame is drawn. Masks are built the first time they are asked for and kept
+	 * for the life of the sprite, so every entity using the sprite shares them.
+	 * 
+	 * @param index
+	 * @param flipX
+	 * @param flipY
+	 * @return
+	 */
+	public CollisionMask getMask(int index, boolean flipX, boolean flipY) {
+		int slot = index * 4 + (flipX ? 1 : 0) + (flipY ? 2 : 0);
+		CollisionMask mask = masks[slot];
+		if (mask == null) {
+			mask = new CollisionMask(frames[index].getImage(), flipX, flipY);
+			masks[slot] = mask;
+		}
+		
+		return mask;
+	}
+	
+	private static Texture[] wrap(BufferedImage[] images) {
+		Texture[] textures = new Texture[images.length];
+		for (int k = 0; k < images.length; k++) {
+			textures[k] = new Texture(images[k]);
+		}
+		
+		return textures;
 	}
 }
@@ -0,0 +1,130 @@
+package com.balwiki.mengine;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A SpriteSet is a library of sprites that is shared by every entity of
+ * a given type. Sprites are defined once, by name, and are referred to
+ * afterwards by the integer handle returned when they were added.
+ * 
+ * Entities only store a reference to their SpriteSet, the handle of their
+ * current sprite, and its playback state. Spawning thousands of copies of
+ * an entity therefore doesn't copy its animations, and switching sprites
+ * is an integer comparison rather than a string lookup.
+ * 
+ * @author Michael Kelly
+ */
+public class SpriteSet {
+	private Sprite[] sprites = new Sprite[4];
+	private String[] names = new String[4];
+	private int count = 0;
+	
+	/**
+	 * Adds a sprite to the set under the given name and returns its handle.
+	 * If a sprite with the same name already exists, the new sprite gets a new
+	 * handle and the name refers to it from then on. The old handle keeps
+	 * pointing to the old sprite, so entities that are playing it aren't affected.
+	 * 
+	 * @param name
+	 * @param sprite
+	 * @return Handle used to refer to the sprite
+	 */
+	public int add(String name, Sprite sprite) {
+		if (count == sprites.length) {
+			Sprite[] newSprites = new Sprite[count * 2];
+			String[] newNames = new String[count * 2];
+			System.arraycopy(sprites, 0, newSprites, 0, count);
+			System.arraycopy(names, 0, newNames, 0, count);
+			sprites = newSprites;
+			names = newNames;
+		}
+		
+		sprites[count] = sprite;
+		names[count] = name;
+		return count++;
+	}
+	
+	/**
+	 * Creates a static sprite from a texture and adds it to the set.
+	 * 
+	 * @param name
+	 * @param frame
+	 * @return Handle used to refer to the sprite
+	 */
+	public int add(String name, Texture frame) {
+		return add(name, new Sprite(frame));
+	}
+	
+	/**
+	 * Creates an animated sprite from textures and adds it to the set.
+	 * 
+	 * @param name
+	 * @param frames
+	 * @param delays
+	 * @return Handle used to refer to the sprite
+	 */
+	public int add(String name, Texture[] frames, long[] delays) {
+		return add(name, new Sprite(frames, delays));
+	}
+	
+	/**
+	 * Creates a static sprite and adds it to the set.
+	 * 
+	 * @param name
+	 * @param frame
+	 * @return Handle used to refer to the sprite
+	 */
+	public int add(String name, BufferedImage frame) {
+		return add(name, new Sprite(frame));
+	}
+	
+	/**
+	 * Creates an animated sprite and adds it to the set.
+	 * 
+	 * @param name
+	 * @param frames
+	 * @param delays
+	 * @return Handle used to refer to the sprite
+	 */
+	public int add(String name, BufferedImage[] frames, long[] delays) {
+		return add(name, new Sprite(frames, delays));
+	}
+	
+	/**
+	 * Finds the handle of the sprite with the given name, or of the newest one
+	 * if the name was added more than once. Sets are expected to be small, so
+	 * this is a simple linear search; entities should look up their handles once
+	 * rather than every frame.
+	 * 
+	 * @param name
+	 * @return Handle of the sprite, or Entity.NO_SPRITE if there is none
+	 */
+	public int getHandle(String name) {
+		for (int k = count - 1; k >= 0; k--) {
+			if (names[k].equals(name)) {
+				return k;
+			}
+		}
+		
+		return Entity.NO_SPRITE;
+	}
+	
+	/**
+	 * Returns the sprite with the given handle.
+	 * 
+	 * @param handle
+	 * @return
+	 */
+	public Sprite get(int handle) {
+		return sprites[handle];
+	}
+	
+	/**
+	 * Returns the number of sprites in the set.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return count;
+	}
+}
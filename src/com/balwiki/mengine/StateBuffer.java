@@ -0,0 +1,169 @@
+package com.balwiki.mengine;
+
+/**
+ * StateBuffer is a reusable, growable byte buffer that entities write their
+ * state into and read it back from. Writes append to the end of the buffer and
+ * reads advance from the start, so a buffer filled by writeState calls can be
+ * read back by readState calls in the same order after calling rewind().
+ * 
+ * Clearing a buffer keeps its storage, so once a buffer has grown large enough
+ * for a world, saving and loading states doesn't allocate.
+ * 
+ * @author Michael Kelly
+ */
+public class StateBuffer {
+	private byte[] data;
+	private int length = 0;
+	private int position = 0;
+	
+	/**
+	 * Creates an empty buffer with the given initial capacity in bytes.
+	 * 
+	 * @param capacity
+	 */
+	public StateBuffer(int capacity) {
+		data = new byte[Math.max(capacity, 16)];
+	}
+	
+	/**
+	 * Empties the buffer so it can be written again.
+	 */
+	public void clear() {
+		length = 0;
+		position = 0;
+	}
+	
+	/**
+	 * Moves reading back to the start of the buffer.
+	 */
+	public void rewind() {
+		position = 0;
+	}
+	
+	/**
+	 * Returns the number of bytes written to the buffer.
+	 * 
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	public void writeByte(int value) {
+		ensureCapacity(length + 1);
+		data[length++] = (byte) value;
+	}
+	
+	public void writeBoolean(boolean value) {
+		writeByte(value ? 1 : 0);
+	}
+	
+	public void writeInt(int value) {
+		ensureCapacity(length + 4);
+		data[length++] = (byte) (value >>> 24);
+		data[length++] = (byte) (value >>> 16);
+		data[length++] = (byte) (value >>> 8);
+		data[length++] = (byte) value;
+	}
+	
+	public void writeLong(long value) {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+	
+	public void writeDouble(double value) {
+		writeLong(Double.doubleToLongBits(value));
+	}
+	
+	public int readByte() {
+		return data[position++];
+	}
+	
+	public boolean readBoolean() {
+		return readByte() != 0;
+	}
+	
+	public int readInt() {
+		int value = ((data[position] & 0xFF) << 24)
+				| ((data[position + 1] & 0xFF) << 16)
+				| ((data[position + 2] & 0xFF) << 8)
+				| (data[position + 3] & 0xFF);
+		position += 4;
+		return value;
+	}
+	
+	public long readLong() {
+		long high = readInt();
+		return (high << 32) | (readInt() & 0xFFFFFFFFL);
+	}
+	
+	public double readDouble() {
+		return Double.longBitsToDouble(readLong());
+	}
+	
+	/**
+	 * Writes a non-negative integer using 7 bits per byte, which takes a single
+	 * byte for values under 128.
+	 * 
+	 * @param value
+	 */
+	public void writeVarInt(int value) {
+		while ((value & ~0x7F) != 0) {
+			writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		writeByte(value);
+	}
+	
+	public int readVarInt() {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = data[position++] & 0xFF;
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		
+		return value;
+	}
+	
+	/**
+	 * Replaces the contents of this buffer with a copy of another buffer.
+	 * 
+	 * @param other
+	 */
+	public void copyFrom(StateBuffer other) {
+		clear();
+		writeBytes(other.data, 0, other.length);
+	}
+	
+	/**
+	 * Returns the underlying array. Only the first getLength() bytes are valid,
+	 * and the array is replaced if the buffer grows.
+	 * 
+	 * @return
+	 */
+	byte[] getData() {
+		return data;
+	}
+	
+	void writeBytes(byte[] bytes, int offset, int count) {
+		ensureCapacity(length + count);
+		System.arraycopy(bytes, offset, data, length, count);
+		length += count;
+	}
+	
+	void readBytesInto(StateBuffer target, int count) {
+		target.writeBytes(data, position, count);
+		position += count;
+	}
+	
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			byte[] newData = new byte[Math.max(capacity, data.length * 2)];
+			System.arraycopy(data, 0, newData, 0, length);
+			data = newData;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package com.balwiki.mengine;
+
+import java.awt.Rectangle;
+
+/**
+ * SweepAndPrune finds every pair of overlapping entities once per frame, and
+ * reports when pairs start touching, keep touching, and stop touching through
+ * Entity.onCollision.
+ * 
+ * Entities are kept sorted by the left edge of their collision box. Since
+ * entities only move a little each frame, the list is nearly sorted already,
+ * and an insertion sort puts it back in order in close to linear time. A sweep
+ * from left to right then only compares each entity against the entities that
+ * start before its right edge, so finding all pairs is close to linear in the
+ * number of entities rather than quadratic.
+ * 
+ * Only entities that have contact events turned on take part. Boxes come from
+ * Entity.getCollisionBounds, pairs are filtered by collision layers, and boxes
+ * that overlap are confirmed with Entity.touches, so pixel collision and
+ * tilemaps are respected.
+ * 
+ * @author Michael Kelly
+ */
+public class SweepAndPrune {
+	private Entity[] sorted = new Entity[64];
+	private int count = 0;
+	
+	// Collision bounds of each sorted entity, refreshed every update
+	private int[] left = new int[64];
+	private int[] right = new int[64];
+	private int[] top = new int[64];
+	private int[] bottom = new int[64];
+	
+	// Scratch rectangle for reading collision bounds
+	private Rectangle bounds = new Rectangle();
+	
+	// Pairs touching this frame and last frame
+	private PairSet current = new PairSet();
+	private PairSet previous = new PairSet();
+	
+	/**
+	 * Starts tracking contacts for an entity.
+	 * 
+	 * @param e
+	 */
+	public void add(Entity e) {
+		if (count == sorted.length) {
+			Entity[] newSorted = new Entity[count * 2];
+			System.arraycopy(sorted, 0, newSorted, 0, count);
+			sorted = newSorted;
+			left = grow(left);
+			right = grow(right);
+			top = grow(top);
+			bottom = grow(bottom);
+		}
+		
+		// Added at the end; the next update sorts it into place
+		sorted[count] = e;
+		count++;
+	}
+	
+	/**
+	 * Stops tracking contacts for an entity. If it was touching anything, the
+	 * exit is reported on the next update.
+	 * 
+	 * @param e
+	 */
+	public void remove(Entity e) {
+		for (int k = 0; k < count; k++) {
+			if (sorted[k] == e) {
+				System.arraycopy(sorted, k + 1, sorted, k, count - k - 1);
+				count--;
+				sorted[count] = null;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Re-sorts the entities, finds all overlapping pairs, and calls onCollision
+	 * on both entities of every pair that entered, stayed, or exited.
+	 */
+	public void update() {
+		sort();
+		
+		current.clear();
+		for (int i = 0; i < count; i++) {
+			Entity a = sorted[i];
+			
+			// Everything after j starts past a's right edge, so it can't overlap
+			for (int j = i + 1; j < count && left[j] < right[i]; j++) {
+				Entity b = sorted[j];
+				if (top[i] < bottom[j] && top[j] < bottom[i]
+						&& (a.getCollisionCategory() & b.getCollisionFilter()) != 0
+						&& (b.getCollisionCategory() & a.getCollisionFilter()) != 0
+						&& a.touches(b)) {
+					current.add(a, b);
+				}
+			}
+		}
+		
+		// Callbacks run after all pairs are found, so entities moving in a callback
+		// don't change the results of this frame.
+		for (int k = 0; k < current.size(); k++) {
+			Entity a = current.getA(k);
+			Entity b = current.getB(k);
+			int state = previous.contains(a, b) ? Entity.COLLISION_STAY : Entity.COLLISION_ENTER;
+			a.onCollision(b, state);
+			b.onCollision(a, state);
+		}
+		for (int k = 0; k < previous.size(); k++) {
+			Entity a = previous.getA(k);
+			Entity b = previous.getB(k);
+			if (!current.contains(a, b)) {
+				a.onCollision(b, Entity.COLLISION_EXIT);
+				b.onCollision(a, Entity.COLLISION_EXIT);
+			}
+		}
+		
+		PairSet swap = previous;
+		previous = current;
+		current = swap;
+	}
+	
+	/**
+	 * Returns the number of pairs found touching by the last update.
+	 * 
+	 * @return
+	 */
+	public int getPairCount() {
+		return previous.size();
+	}
+	
+	/**
+	 * Insertion sort on the left edges. Entities that moved past their neighbours
+	 * are shifted into place, which is cheap since few do so in any one frame.
+	 */
+	private void sort() {
+		for (int i = 0; i < count; i++) {
+			sorted[i].getCollisionBounds(bounds);
+			left[i] = bounds.x;
+			right[i] = bounds.x + bounds.width;
+			top[i] = bounds.y;
+			bottom[i] = bounds.y + bounds.height;
+		}
+		
+		for (int i = 1; i < count; i++) {
+			Entity e = sorted[i];
+			int key = left[i];
+			int r = right[i];
+			int t = top[i];
+			int b = bottom[i];
+			int j = i - 1;
+			while (j >= 0 && left[j] > key) {
+				sorted[j + 1] = sorted[j];
+				left[j + 1] = left[j];
+				right[j + 1] = right[j];
+				top[j + 1] = top[j];
+				bottom[j + 1] = bottom[j];
+				j--;
+			}
+			sorted[j + 1] = e;
+			left[j + 1] = key;
+			right[j + 1] = r;
+			top[j + 1] = t;
+			bottom[j + 1] = b;
+		}
+	}
+	
+	private static int[] grow(int[] array) {
+		int[] newArray = new int[array.length * 2];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+	
+	/**
+	 * A set of entity pairs, stored in an open-addressed hash table keyed by the
+	 * ids of the two entities. Pairs are also kept in the order they were added,
+	 * so they can be iterated and cleared without scanning the whole table.
+	 */
+	private static class PairSet {
+		private long[] keys = new long[256];
+		private int[] order = new int[128];
+		private Entity[] as = new Entity[256];
+		private Entity[] bs = new Entity[256];
+		private int size = 0;
+		
+		void add(Entity a, Entity b) {
+			if ((size + 1) * 2 > keys.length) {
+				grow();
+			}
+			
+			long key = key(a, b);
+			int slot = find(key);
+			if (keys[slot] == 0) {
+				keys[slot] = key;
+				as[slot] = a;
+				bs[slot] = b;
+				order[size++] = slot;
+			}
+		}
+		
+		boolean contains(Entity a, Entity b) {
+			return keys[find(key(a, b))] != 0;
+		}
+		
+		int size() {
+			return size;
+		}
+		
+		Entity getA(int index) {
+			return as[order[index]];
+		}
+		
+		Entity getB(int index) {
+			return bs[order[index]];
+		}
+		
+		void clear() {
+			for (int k = 0; k < size; k++) {
+				int slot = order[k];
+				keys[slot] = 0;
+				as[slot] = null;
+				bs[slot] = null;
+			}
+			size = 0;
+		}
+		
+		/**
+		 * Finds the slot holding the key, or the empty slot where it belongs.
+		 */
+		private int find(long key) {
+			int mask = keys.length - 1;
+			int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+			while (keys[slot] != 0 && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			
+			return slot;
+		}
+		
+		private void grow() {
+			Entity[] oldAs = as;
+			Entity[] oldBs = bs;
+			int[] oldOrder = order;
+			int oldSize = size;
+			int capacity = keys.length * 2;
+			
+			keys = new long[capacity];
+			as = new Entity[capacity];
+			bs = new Entity[capacity];
+			order = new int[capacity / 2];
+			size = 0;
+			
+			for (int k = 0; k < oldSize; k++) {
+				int slot = oldOrder[k];
+				add(oldAs[slot], oldBs[slot]);
+			}
+		}
+		
+		/**
+		 * Entity ids start at 1, so a key is never 0, which marks empty slots.
+		 */
+		private static long key(Entity a, Entity b) {
+			long low = Math.min(a.id, b.id);
+			long high = Math.max(a.id, b.id);
+			return (high << 32) | low;
+		}
+	}
+}
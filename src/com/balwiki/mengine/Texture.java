@@ -0,0 +1,88 @@
+package com.balwiki.mengine;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A Texture is a lightweight handle to an image. Textures created by a
+ * TextureCache only hold the path of their image; the image is loaded the first
+ * time it is needed, may be evicted when the cache is over its memory budget,
+ * and is loaded again transparently the next time it is needed.
+ * 
+ * Textures can also wrap an image directly, in which case the image is kept for
+ * the life of the texture and never evicted.
+ * 
+ * @author Michael Kelly
+ */
+public class Texture {
+	private final TextureCache cache;
+	private final String path;
+	
+	// Read without locking when drawing; only set by the cache while holding its lock
+	volatile BufferedImage image;
+	
+	// Size of the loaded image, guarded by the cache's lock
+	long bytes;
+	
+	// When the image was last used, in units of about a millisecond. Only written
+	// when it changes, so textures drawn many times a frame don't keep writing it.
+	volatile long lastUsed;
+	
+	// Not synchronized, so only approximate when drawn from several threads
+	long hits;
+	
+	/**
+	 * Wraps an image that is always kept in memory.
+	 * 
+	 * @param image
+	 */
+	public Texture(BufferedImage image) {
+		cache = null;
+		path = null;
+		this.image = image;
+	}
+	
+	/**
+	 * Creates a handle to an image file managed by a cache. Use TextureCache.get
+	 * rather than calling this directly.
+	 * 
+	 * @param cache
+	 * @param path
+	 */
+	Texture(TextureCache cache, String path) {
+		this.cache = cache;
+		this.path = path;
+	}
+	
+	/**
+	 * Returns the image, loading it first if it isn't in memory. Images that are
+	 * already loaded are returned without locking the cache.
+	 * 
+	 * @return
+	 */
+	public BufferedImage getImage() {
+		BufferedImage current = image;
+		if (cache == null) {
+			return current;
+		}
+		if (current == null) {
+			return cache.load(this);
+		}
+		
+		hits++;
+		long now = TextureCache.now();
+		if (lastUsed != now) {
+			lastUsed = now;
+		}
+		
+		return current;
+	}
+	
+	/**
+	 * Returns the path of the image file, or null for wrapped images.
+	 * 
+	 * @return
+	 */
+	public String getPath() {
+		return path;
+	}
+}
@@ -0,0 +1,233 @@
+package com.balwiki.mengine;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.imageio.ImageIO;
+
+/**
+ * TextureCache loads images on demand and keeps the memory they use under a
+ * budget. It hands out Texture handles for image files without loading them.
+ * An image is decoded the first time its texture is drawn, and when the
+ * images in memory add up to more than the budget, the least recently used
+ * ones are dropped until they fit again. Dropped images are reloaded the next
+ * time they're used.
+ * 
+ * Memory is counted from the actual size of each image's raster, so the budget
+ * is a real ceiling on the heap used by images. It should be larger than the
+ * images used in a single frame, or they will be reloaded every frame.
+ * 
+ * Drawing a texture whose image is loaded doesn't lock the cache; it only
+ * records roughly when the texture was used. The cache is locked when an image
+ * has to be loaded, but not while it is being decoded, so a cache can be shared
+ * by engines running on different threads.
+ * 
+ * @author Michael Kelly
+ */
+public class TextureCache {
+	private long budget;
+	private long used = 0;
+	
+	private long misses = 0;
+	private long evictions = 0;
+	
+	// Handles by path, so every use of an image file shares one texture
+	private final HashMap<String, Texture> textures = new HashMap<String, Texture>();
+	
+	// Textures whose images are currently in memory
+	private final ArrayList<Texture> loaded = new ArrayList<Texture>();
+	
+	/**
+	 * Creates a cache that keeps at most the given number of bytes of images in
+	 * memory.
+	 * 
+	 * @param budgetBytes
+	 */
+	public TextureCache(long budgetBytes) {
+		budget = budgetBytes;
+	}
+	
+	/**
+	 * Returns the texture for an image file. The image isn't loaded until the
+	 * texture is first used.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public synchronized Texture get(String path) {
+		Texture texture = textures.get(path);
+		if (texture == null) {
+			texture = new Texture(this, path);
+			textures.put(path, texture);
+		}
+		
+		return texture;
+	}
+	
+	/**
+	 * Loads a texture's image, evicting older images if needed. Called by
+	 * Texture.getImage when the image isn't in memory. If two threads load the
+	 * same image at once, the first one to finish wins and the other's copy is
+	 * thrown away.
+	 * 
+	 * @param texture
+	 * @return
+	 * @throws IllegalStateException If the image file can't be read
+	 */
+	BufferedImage load(Texture texture) {
+		BufferedImage image;
+		try {
+			image = ImageIO.read(new File(texture.getPath()));
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not load texture " + texture.getPath(), e);
+		}
+		if (image == null) {
+			throw new IllegalStateException("Unsupported image format for texture " + texture.getPath());
+		}
+		
+		synchronized (this) {
+			texture.lastUsed = now();
+			if (texture.image != null) {
+				return texture.image;
+			}
+			
+			misses++;
+			texture.bytes = rasterBytes(image);
+			texture.image = image;
+			used += texture.bytes;
+			loaded.add(texture);
+			evict(texture);
+		}
+		
+		return image;
+	}
+	
+	/**
+	 * Changes the budget, evicting images right away if they no longer fit.
+	 * 
+	 * @param budgetBytes
+	 */
+	public synchronized void setBudget(long budgetBytes) {
+		budget = budgetBytes;
+		evict(null);
+	}
+	
+	public synchronized long getBudget() {
+		return budget;
+	}
+	
+	/**
+	 * Returns the number of bytes used by the images currently in memory.
+	 * 
+	 * @return
+	 */
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+	
+	/**
+	 * Returns the number of times a texture was used while its image was in
+	 * memory. Hits aren't counted under a lock, so the total is approximate when
+	 * textures are drawn from several threads.
+	 * 
+	 * @return
+	 */
+	public synchronized long getHits() {
+		long hits = 0;
+		for (Texture texture : textures.values()) {
+			hits += texture.hits;
+		}
+		
+		return hits;
+	}
+	
+	/**
+	 * Returns the number of times an image had to be loaded.
+	 * 
+	 * @return
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of times an image was dropped to stay under the budget.
+	 * 
+	 * @return
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * Prints the cache's memory use and hit, miss, and eviction counts.
+	 * 
+	 * @param out
+	 */
+	public synchronized void report(PrintStream out) {
+		out.println("textures:  " + loaded.size() + " of " + textures.size() + " loaded");
+		out.println("memory:    " + used + " of " + budget + " bytes");
+		out.println("hits:      " + getHits());
+		out.println("misses:    " + misses);
+		out.println("evictions: " + evictions);
+	}
+	
+	/**
+	 * Drops the least recently used images until the rest fit in the budget. The
+	 * image that was just loaded is always kept, even if it's bigger than the
+	 * budget by itself, since it's about to be drawn. Eviction only happens when
+	 * an image is loaded, so scanning for the oldest texture is cheap enough.
+	 * 
+	 * @param keep Texture that must not be evicted, or null
+	 */
+	private void evict(Texture keep) {
+		while (used > budget) {
+			int oldest = -1;
+			for (int k = 0; k < loaded.size(); k++) {
+				Texture texture = loaded.get(k);
+				if (texture != keep && (oldest == -1 || texture.lastUsed < loaded.get(oldest).lastUsed)) {
+					oldest = k;
+				}
+			}
+			if (oldest == -1) {
+				return;
+			}
+			
+			// Swap with the last texture so removing it doesn't shift the list
+			Texture texture = loaded.get(oldest);
+			loaded.set(oldest, loaded.get(loaded.size() - 1));
+			loaded.remove(loaded.size() - 1);
+			
+			used -= texture.bytes;
+			texture.image = null;
+			texture.bytes = 0;
+			evictions++;
+		}
+	}
+	
+	/**
+	 * Returns the current time in units of about a millisecond, for recording
+	 * when textures were used.
+	 * 
+	 * @return
+	 */
+	static long now() {
+		return System.nanoTime() >> 20;
+	}
+	
+	/**
+	 * Returns the number of bytes used by an image's pixel data.
+	 * 
+	 * @param image
+	 * @return
+	 */
+	static long rasterBytes(BufferedImage image) {
+		DataBuffer data = image.getRaster().getDataBuffer();
+		return (long) data.getSize() * data.getNumBanks() * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+	}
+}
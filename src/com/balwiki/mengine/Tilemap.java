@@ -1,13 +1,16 @@
 package com.balwiki.mengine;
 
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Tilemaps are an entity consisting of a grid of sprites. Tilemaps are given
- * a tileset in the form of a HashMap, and use it to draw tiles to the screen
- * and manage collision with other entities.
+ * a tileset in the form of a HashMap of Textures, and use it to draw tiles to
+ * the screen and manage collision with other entities.
  * 
  * @author Michael Kelly
  */
@@ -16,9 +19,12 @@ public class Tilemap extends Entity {
 	public int tileWidth;
 	public int tileHeight;
 	public String[] tileMap;
-	public HashMap<Character, BufferedImage> tileset;
+	public HashMap<Character, Texture> tileset;
 	public String solidTiles;
 	
+	// Scratch rectangle for reading the clip bounds while drawing
+	private Rectangle clip = new Rectangle();
+	
 	/**
 	 * Creates a tilemap.
 	 * 
@@ -28,15 +34,15 @@ public class Tilemap extends Entity {
 	 * @param mapY		Y position of the entire tilemap in pixels
 	 * @param mapWidth	Width of the entire tilemap in tiles
 	 * @param mapHeight	Height of the entire tilemap in tiles
-	 * @param tiles		Hashmap mapping characters to BufferedImages for the tiles
+	 * @param tiles		Map of characters to Textures for the tiles
 	 * @param solids	String of all characters that are considered "solid"
 	 * @param map		Array of strings defining the map. Uses characters from the tilemap.
 	 */
-	public Tilemap(int tw, int th, int mapX, int mapY, int mapWidth, int mapHeight, HashMap<Character, BufferedImage> tiles, String solids, String[] map) {
+	public Tilemap(int tw, int th, int mapX, int mapY, int mapWidth, int mapHeight, Map<Character, Texture> tiles, String solids, String[] map) {
 		tileWidth = tw;
 		tileHeight = th;
 		tileMap = map;
-		tileset = tiles;
+		tileset = new HashMap<Character, Texture>(tiles);
 		
 		x = mapX;
 		y = mapY;
@@ -45,26 +51,149 @@ public class Tilemap extends Entity {
 		solidTiles = solids;
 	}
 	
+	/**
+	 * Creates a tilemap from images that are kept in memory.
+	 * 
+	 * @param tw		Width of each tile
+	 * @param th		Height of each tile
+	 * @param mapX		X position of the entire tilemap in pixels
+	 * @param mapY		Y position of the entire tilemap in pixels
+	 * @param mapWidth	Width of the entire tilemap in tiles
+	 * @param mapHeight	Height of the entire tilemap in tiles
+	 * @param tiles		Hashmap mapping characters to BufferedImages for the tiles
+	 * @param solids	String of all characters that are considered "solid"
+	 * @param map		Array of strings defining the map. Uses characters from the tilemap.
+	 */
+	public Tilemap(int tw, int th, int mapX, int mapY, int mapWidth, int mapHeight, HashMap<Character, BufferedImage> tiles, String solids, String[] map) {
+		this(tw, th, mapX, mapY, mapWidth, mapHeight, wrap(tiles), solids, map);
+	}
+	
 	public void process() {
 		// No processing needed
 	}
 
 	/**
 	 * Iterates through each tile in the tilemap and draws it at the correct
-	 * position on the screen.
+	 * position on the screen. Only the tiles within the clipping area of the
+	 * graphics object are drawn, which matters when the engine is only
+	 * redrawing dirty regions.
 	 */
 	public void draw(Graphics g) {
-		BufferedImage tile;
-		for (int mx = 0; mx < width; mx++) {
-			for (int my = 0; my < height; my++) {
+		clip.setBounds(x, y, width * tileWidth, height * tileHeight);
+		g.getClipBounds(clip);
+		
+		int minX = Math.max(0, (clip.x - x) / tileWidth);
+		int minY = Math.max(0, (clip.y - y) / tileHeight);
+		int maxX = Math.min(width, (clip.x + clip.width - x + tileWidth - 1) / tileWidth);
+		int maxY = Math.min(height, (clip.y + clip.height - y + tileHeight - 1) / tileHeight);
+		
+		Texture tile;
+		for (int mx = minX; mx < maxX; mx++) {
+			for (int my = minY; my < maxY; my++) {
 				tile = tileset.get(tileMap[my].charAt(mx));
 				if (tile != null) {
-					g.drawImage(tile, x + (mx * tileWidth), y + (my * tileHeight), tileWidth, tileHeight, null);
+					g.drawImage(tile.getImage(), x + (mx * tileWidth), y + (my * tileHeight), tileWidth, tileHeight, null);
 				}
 			}
 		}
 	}
 
+	/**
+	 * The tilemap covers its whole grid, rather than a single sprite frame.
+	 */
+	public void getDrawBounds(Rectangle bounds) {
+		bounds.setBounds(x, y, width * tileWidth, height * tileHeight);
+	}
+	
+	/**
+	 * Width and height are counted in tiles, so the bounds are scaled to pixels.
+	 */
+	public void getCollisionBounds(Rectangle bounds) {
+		bounds.setBounds(x, y, width * tileWidth, height * tileHeight);
+	}
+	
+	/**
+	 * Other entities can't tell where the tiles are, so the tilemap checks for
+	 * contact itself.
+	 */
+	public boolean touches(Entity e) {
+		return collidesWith(e, 0, 0) != null;
+	}
+	
+	/**
+	 * Tiles can be changed during the game, so they are part of the state.
+	 */
+	public int stateHash() {
+		return 31 * super.stateHash() + Arrays.hashCode(tileMap);
+	}
+	
+	/**
+	 * Writes the tiles along with the rest of the entity's state.
+	 */
+	public void writeState(StateBuffer buffer) {
+		super.writeState(buffer);
+		for (int my = 0; my < height; my++) {
+			for (int mx = 0; mx < width; mx++) {
+				buffer.writeVarInt(tileMap[my].charAt(mx));
+			}
+		}
+	}
+	
+	/**
+	 * Reads the tiles back. Rows are only rebuilt if one of their tiles differs,
+	 * so restoring an unchanged map doesn't allocate.
+	 */
+	public void readState(StateBuffer buffer) {
+		super.readState(buffer);
+		for (int my = 0; my < height; my++) {
+			for (int mx = 0; mx < width; mx++) {
+				char tile = (char) buffer.readVarInt();
+				if (tileMap[my].charAt(mx) != tile) {
+					setTile(mx, my, tile);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Changes a single tile in the map and marks it to be redrawn.
+	 * 
+	 * @param mx	X position of the tile, in tiles
+	 * @param my	Y position of the tile, in tiles
+	 * @param tile	Character of the new tile
+	 */
+	public void setTile(int mx, int my, char tile) {
+		char[] row = tileMap[my].toCharArray();
+		row[mx] = tile;
+		tileMap[my] = new String(row);
+		
+		if (engine != null) {
+			engine.markDirty(x + (mx * tileWidth), y + (my * tileHeight), tileWidth, tileHeight);
+		}
+	}
+
+	/**
+	 * Checks if the tile under a single point is solid. This is a direct lookup in
+	 * the grid, so it's cheap enough to call for every particle every frame.
+	 * 
+	 * @param px	X position in pixels
+	 * @param py	Y position in pixels
+	 * @return		True if the point is inside a solid tile
+	 */
+	public boolean isSolidAt(int px, int py) {
+		if (px < x || py < y) {
+			return false;
+		}
+		
+		int mx = (px - x) / tileWidth;
+		int my = (py - y) / tileHeight;
+		if (mx >= width || my >= height) {
+			return false;
+		}
+		
+		return solidTiles.indexOf(tileMap[my].charAt(mx)) != -1;
+	}
+
 	/**
 	 * Iterates through each tile in the tilemap and checks if it is solid and
 	 * if it collides with the player. Returns the first tile that collides with
@@ -73,13 +202,18 @@ public class Tilemap extends Entity {
 	 * A useful improvement would be to store the solid tiles in a quadtree or a
 	 * hierarchical grid, and use the entity's position relative to the tilemap
 	 * to limit the collision check to the relevant section of tiles.
+	 * 
+	 * Entities using pixel collision only collide with a tile if one of their
+	 * solid pixels is inside it.
 	 */
 	public CollisionEvent collidesWith(Entity e, int dx, int dy) {
+		CollisionMask mask = e.getCollisionMask();
 		for (int mx = 0; mx < width; mx++) {
 			for (int my = 0; my < height; my++) {
 				if (solidTiles.indexOf(tileMap[my].charAt(mx)) != -1) {
-					if (Util.boxCollide(x + (mx * tileWidth), y + (my * tileHeight), tileWidth, tileHeight, e.x + dx, e.y + dy, e.width, e.height)) {
-						return CollisionEvent.create(
+					if (Util.boxCollide(x + (mx * tileWidth), y + (my * tileHeight), tileWidth, tileHeight, e.x + dx, e.y + dy, e.width, e.height)
+							&& (mask == null || mask.overlapsBox(e.x + dx, e.y + dy, x + (mx * tileWidth), y + (my * tileHeight), tileWidth, tileHeight))) {
+						return engine.getCollisionEvent().set(
 								mx * tileWidth,
 								my * tileHeight,
 								tileWidth,
@@ -93,5 +227,13 @@ public class Tilemap extends Entity {
 		
 		return null;
 	}
-
+	
+	private static Map<Character, Texture> wrap(Map<Character, BufferedImage> images) {
+		HashMap<Character, Texture> textures = new HashMap<Character, Texture>();
+		for (Map.Entry<Character, BufferedImage> entry : images.entrySet()) {
+			textures.put(entry.getKey(), new Texture(entry.getValue()));
+		}
+		
+		return textures;
+	}
 }
@@ -0,0 +1,221 @@
+package com.balwiki.mengine;
+
+import java.io.PrintStream;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WorldScheduler steps many headless engines ("worlds") on a fixed number of
+ * threads, for things like bot testing and server-side simulation.
+ * 
+ * Each world has its own tick rate. Worlds wait in a queue ordered by when
+ * their next tick is due; a free thread takes the world that is most overdue,
+ * steps it once, and puts it back with its next due time. A world is only
+ * ever stepped by one thread at a time, and no world can take two ticks in a
+ * row while another world is waiting, so scheduling is fair even when the
+ * threads can't keep up.
+ * 
+ * Worlds must be created headless and already initialized when added.
+ * 
+ * @author Michael Kelly
+ */
+public class WorldScheduler {
+	private final DelayQueue<World> queue = new DelayQueue<World>();
+	private final Thread[] threads;
+	private final AtomicLong ticks = new AtomicLong();
+	private final AtomicInteger worlds = new AtomicInteger();
+	
+	private volatile boolean running = false;
+	private boolean started = false;
+	private long startTime;
+	private long stopTime;
+	
+	/**
+	 * Creates a scheduler that steps worlds on the given number of threads.
+	 * Usually this is the number of cores.
+	 * 
+	 * @param threadCount
+	 */
+	public WorldScheduler(int threadCount) {
+		threads = new Thread[threadCount];
+	}
+	
+	/**
+	 * Adds a world that ticks at its engine's FPS.
+	 * 
+	 * @param engine
+	 * @throws IllegalArgumentException If the engine has a window
+	 */
+	public void add(Engine engine) {
+		add(engine, engine.fps);
+	}
+	
+	/**
+	 * Adds a world with the given tick rate. Can be called while the scheduler
+	 * is running.
+	 * 
+	 * @param engine
+	 * @param ticksPerSecond	Ticks per second, or 0 to tick as fast as possible
+	 * @throws IllegalArgumentException If the engine has a window, since its own
+	 * 									game loop would step it as well
+	 */
+	public void add(Engine engine, int ticksPerSecond) {
+		if (engine.window != null) {
+			throw new IllegalArgumentException("Only headless engines can be scheduled");
+		}
+		
+		long period = ticksPerSecond > 0 ? 1000000000L / ticksPerSecond : 0;
+		queue.put(new World(engine, period, System.nanoTime()));
+		worlds.incrementAndGet();
+	}
+	
+	/**
+	 * Starts the worker threads.
+	 */
+	public void start() {
+		running = true;
+		started = true;
+		startTime = System.nanoTime();
+		ticks.set(0);
+		
+		for (int k = 0; k < threads.length; k++) {
+			threads[k] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "WorldScheduler-" + k);
+			threads[k].setDaemon(true);
+			threads[k].start();
+		}
+	}
+	
+	/**
+	 * Stops the worker threads and waits for them to finish their current ticks.
+	 * Does nothing if the scheduler isn't running.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		if (!running) {
+			return;
+		}
+		
+		running = false;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		stopTime = System.nanoTime();
+	}
+	
+	/**
+	 * Returns the number of worlds being scheduled.
+	 * 
+	 * @return
+	 */
+	public int getWorldCount() {
+		return worlds.get();
+	}
+	
+	/**
+	 * Returns the total number of ticks run across all worlds since starting.
+	 * 
+	 * @return
+	 */
+	public long getTickCount() {
+		return ticks.get();
+	}
+	
+	/**
+	 * Returns the number of world ticks per second across all worlds since
+	 * starting, up to when the scheduler was stopped.
+	 * 
+	 * @return Ticks per second, or 0 if the scheduler was never started
+	 */
+	public double getTicksPerSecond() {
+		if (!started) {
+			return 0;
+		}
+		
+		long end = running ? System.nanoTime() : stopTime;
+		if (end <= startTime) {
+			return 0;
+		}
+		return ticks.get() / ((end - startTime) / 1000000000.0);
+	}
+	
+	/**
+	 * Prints the aggregate throughput of the scheduler.
+	 * 
+	 * @param out
+	 */
+	public void report(PrintStream out) {
+		out.println("worlds:  " + getWorldCount());
+		out.println("threads: " + threads.length);
+		out.println("ticks:   " + getTickCount());
+		out.println(String.format("world-ticks/s: %.1f", getTicksPerSecond()));
+	}
+	
+	/**
+	 * Main loop of each worker thread. A world that throws an exception or error
+	 * is dropped from the scheduler so it can't take the other worlds, or the
+	 * thread, down with it.
+	 */
+	private void work() {
+		while (running) {
+			World world;
+			try {
+				world = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (world == null) {
+				continue;
+			}
+			
+			try {
+				world.engine.step();
+			} catch (Throwable e) {
+				e.printStackTrace();
+				worlds.decrementAndGet();
+				continue;
+			}
+			ticks.incrementAndGet();
+			
+			// If the world fell more than a tick behind, don't make it catch up
+			// by bursting; just schedule the next tick from now.
+			long now = System.nanoTime();
+			world.due += world.period;
+			if (world.due < now - world.period) {
+				world.due = now;
+			}
+			queue.put(world);
+		}
+	}
+	
+	/**
+	 * A world in the queue, ordered by when its next tick is due.
+	 */
+	private static class World implements Delayed {
+		Engine engine;
+		long period;
+		long due;
+		
+		World(Engine engine, long period, long due) {
+			this.engine = engine;
+			this.period = period;
+			this.due = due;
+		}
+		
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		
+		public int compareTo(Delayed other) {
+			long otherDue = ((World) other).due;
+			return due < otherDue ? -1 : (due > otherDue ? 1 : 0);
+		}
+	}
+}
@@ -4,6 +4,10 @@ import java.awt.event.KeyEvent;
 
 import com.balwiki.mengine.CollisionEvent;
 import com.balwiki.mengine.Entity;
+import com.balwiki.mengine.Input;
+import com.balwiki.mengine.ParticleSystem;
+import com.balwiki.mengine.SpriteSet;
+import com.balwiki.mengine.StateBuffer;
 
 /**
  * Entity representing the player of the game. Handles movement.
@@ -19,18 +23,48 @@ public class Player extends Entity {
 	
 	private boolean on_ground = true; // True if the player is standing on the ground
 	
+	private ParticleSystem dust = null; // Kicked up when landing, if set
+	
+	// Handles of the sprites in the player's SpriteSet
+	private int standSprite;
+	private int jumpSprite;
+	private int runSprite;
+	
 	/**
 	 * Initializes the player with the default collision box at a given
-	 * x/y point.
+	 * x/y point. The SpriteSet must contain "stand", "jump" and "run"
+	 * sprites, and can be shared between any number of players.
 	 * 
 	 * @param nx
 	 * @param ny
+	 * @param sprites
 	 */
-	public Player(int nx, int ny) {
+	public Player(int nx, int ny, SpriteSet sprites) {
 		x = nx;
 		y = ny;
 		width = 22;
 		height = 24;
+		
+		// Players are on their own collision layer, so they can be told apart from the
+		// world when checking collisions.
+		setCollisionCategory(SampleGame.LAYER_PLAYER);
+		
+		// Looking up the handles once means that changing sprites every frame
+		// is just an integer comparison.
+		setSpriteSet(sprites);
+		standSprite = sprites.getHandle("stand");
+		jumpSprite = sprites.getHandle("jump");
+		runSprite = sprites.getHandle("run");
+		setSprite(standSprite);
+	}
+	
+	/**
+	 * Sets the particle system that the player kicks dust up into when landing.
+	 * 
+	 * @param ps
+	 */
+	public void setDust(ParticleSystem ps) {
+		dust = ps;
 	}
 	
 	/**
@@ -46,11 +80,14 @@ public class Player extends Entity {
 		// dx and dy are the desired movement for this frame.
 		int dx = 0, dy = 0;
 		
+		// Input holds the state of the keyboard for this frame.
+		Input input = engine.getInput();
+		
 		// Set dx based on keyboard input
-		if (engine.keys[KeyEvent.VK_LEFT]) {
+		if (input.isDown(KeyEvent.VK_LEFT)) {
 			dx -= 2;
 		}
-		if (engine.keys[KeyEvent.VK_RIGHT]) {
+		if (input.isDown(KeyEvent.VK_RIGHT)) {
 			dx += 2;
 		}
 		
@@ -62,8 +99,9 @@ public class Player extends Entity {
 		dy = (int) yAcc;
 		
 		// If we are standing on the ground and press the D key, we jump by setting our
-		// Y acceleration to a negative value (and our current desired movement to match)
-		if (on_ground && engine.keys[KeyEvent.VK_D]) {
+		// Y acceleration to a negative value (and our current desired movement to match).
+		// Checking wasPressed as well means a tap shorter than a frame still jumps.
+		if (on_ground && (input.isDown(KeyEvent.VK_D) || input.wasPressed(KeyEvent.VK_D))) {
 			yAcc = -12;
 			dy = -12;
 		}
@@ -72,14 +110,16 @@ public class Player extends Entity {
 		if (dy != 0) {
 			// checkCollision takes in a dx and dy argument to check our current position plus
 			// our desired movement; we want to know if we're blocked where we want to move to.
-			CollisionEvent yCollision = engine.checkCollision(this, 0, dy);
+			// The last argument limits the check to the solid world, so other players and
+			// anything else on other layers don't block us.
+			CollisionEvent yCollision = engine.checkCollision(this, 0, dy, SampleGame.LAYER_WORLD);
 			
 			// If we are not blocked, we move, change sprite, and mark that we're in the air.
 			// If we are blocked, we want to stop our Y acceleration (for when we fall to the
 			// ground).
 			if (yCollision == null) {
 				y += dy;
-				setSprite("jump");
+				setSprite(jumpSprite);
 				on_ground = false;
 			} else if (yCollision != null) {
 				yAcc = 0;
@@ -91,7 +131,12 @@ public class Player extends Entity {
 					// didn't check this, the running sprite would keep getting overridden by the 
 					// standing sprite.
 					if (!on_ground) {
-						setSprite("stand");
+						setSprite(standSprite);
+						
+						// Landing kicks up a little dust at our feet, spraying upwards.
+						if (dust != null) {
+							dust.emit(12, x + width / 2, yCollision.boxY - 1, (float) -Math.PI / 2, (float) Math.PI, 20, 60, 0.5f, 0xFFC8B48C);
+						}
 					}
 
 					// But we're standing now.
@@ -104,23 +149,23 @@ public class Player extends Entity {
 					// Negative dy means we're moving up. Thus, we stick ourselves to the bottom of
 					// what we hit, change to the jumping sprite, and set that we're in the air.
 					y = yCollision.boxY + yCollision.boxHeight;
-					setSprite("jump");
+					setSprite(jumpSprite);
 					on_ground = false;
 				}
 			}
 		}
 		
 		// Now we try to move in the X axis
-		if (dx != 0 && engine.checkCollision(this, dx, 0) == null) {
+		if (dx != 0 && engine.checkCollision(this, dx, 0, SampleGame.LAYER_WORLD) == null) {
 			x += dx;
 			
 			// Only run if we're on the ground
 			if (on_ground) {
-				setSprite("run");
+				setSprite(runSprite);
 			}
 		} else if (on_ground) {
 			// Not moving and on the ground? Then you will stand still!
-			setSprite("stand");
+			setSprite(standSprite);
 		}
 
 		// Flip the sprite based on which direction it is facing
@@ -130,5 +175,33 @@ public class Player extends Entity {
 			flipX = false;
 		}
 	}
-
+	
+	/**
+	 * The player's movement state is included in the checksum so that replays
+	 * notice if it ever differs.
+	 */
+	@Override
+	public int stateHash() {
+		long yBits = Double.doubleToLongBits(yAcc);
+		int hash = 31 * super.stateHash() + (int) (yBits ^ (yBits >>> 32));
+		return 31 * hash + (on_ground ? 1 : 0);
+	}
+	
+	/**
+	 * The player's movement state needs to be saved along with the rest of the
+	 * entity, or rewinding would leave the player falling at the wrong speed.
+	 */
+	@Override
+	public void writeState(StateBuffer buffer) {
+		super.writeState(buffer);
+		buffer.writeDouble(yAcc);
+		buffer.writeBoolean(on_ground);
+	}
+	
+	@Override
+	public void readState(StateBuffer buffer) {
+		super.readState(buffer);
+		yAcc = buffer.readDouble();
+		on_ground = buffer.readBoolean();
+	}
 }
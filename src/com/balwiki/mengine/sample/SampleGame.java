@@ -1,14 +1,19 @@
 package com.balwiki.mengine.sample;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 
-import javax.imageio.ImageIO;
-
 import com.balwiki.mengine.Engine;
+import com.balwiki.mengine.InputRecorder;
+import com.balwiki.mengine.ParticleSystem;
+import com.balwiki.mengine.Replay;
+import com.balwiki.mengine.SpriteSet;
+import com.balwiki.mengine.Texture;
+import com.balwiki.mengine.TextureCache;
 import com.balwiki.mengine.Tilemap;
+import com.balwiki.mengine.WorldScheduler;
 
 /**
  * Sample game for MEngine. A side-scrolling platformer
@@ -18,6 +23,17 @@ import com.balwiki.mengine.Tilemap;
  */
 public class SampleGame extends Engine {
 	
+	// Collision layers used by the game. Each layer is a bit in a 32-bit mask.
+	public static final int LAYER_WORLD = 1 << 0;
+	public static final int LAYER_PLAYER = 1 << 1;
+	
+	// Images are loaded through a cache that keeps at most 4 MB of them in memory
+	protected TextureCache textures = new TextureCache(4 * 1024 * 1024);
+	
+	// Shared by every player in the game
+	protected SpriteSet playerSprites;
+	protected ParticleSystem dust;
+	
 	public SampleGame() {
 		// The Engine constructor initializes the engine and calls the 
 		// initialize() function. It's four arguments are:
@@ -27,61 +43,61 @@ public class SampleGame extends Engine {
 		//  * desired frames per second
 		super(256, 240, 2, 40);
 	}
+	
+	/**
+	 * Creates the game without initializing it or starting the game loop. This
+	 * is used for recording and replaying sessions.
+	 * 
+	 * @param headless True to run without a window
+	 */
+	public SampleGame(boolean headless) {
+		super(256, 240, 2, 40, headless);
+	}
 
 	/**
 	 * Initialize is run before the game engine starts, and is where you
 	 * initialize the starting entities in your game.
 	 */
 	public void initialize() {
-		// Player is the entity for the PC
-		Player player = new Player(10, 10);
+		// Textures are handles to the graphics to be displayed. Getting a texture
+		// from the cache doesn't load the image; that happens the first time it's
+		// drawn, and the cache drops images that haven't been used recently if
+		// they don't all fit in its memory budget.
+		Texture tubeTile = textures.get("resources/tiles/tube.png");
+		Texture shoaffStand = textures.get("resources/player/stand.png");
+		Texture shoaffJump = textures.get("resources/player/jump.png");
+		Texture shoaffRun1 = textures.get("resources/player/_run0.png");
+		Texture shoaffRun2 = textures.get("resources/player/_run1.png");
+		Texture shoaffRun3 = textures.get("resources/player/_run2.png");
 		
-		// BufferedImage is used to store most graphics to be displayed.
-		// In a more advanced engine, this should be handled by a loader
-		// class of some kind.
-		BufferedImage tubeTile = null, 
-			shoaffStand = null,
-			shoaffJump = null,
-			shoaffRun1 = null, 
-			shoaffRun2 = null, 
-			shoaffRun3 = null;
-		try {
-			tubeTile = ImageIO.read(new File("resources/tiles/tube.png"));
-			shoaffStand = ImageIO.read(new File("resources/player/stand.png"));
-			shoaffJump = ImageIO.read(new File("resources/player/jump.png"));
-			shoaffRun1 = ImageIO.read(new File("resources/player/_run0.png"));
-			shoaffRun2 = ImageIO.read(new File("resources/player/_run1.png"));
-			shoaffRun3 = ImageIO.read(new File("resources/player/_run2.png"));
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		// Entities can be assigned sprites. A sprite is either a static graphic or
-		// and animation sequence of many graphics. Sprites are stored within the
-		// entity and given a string key that is used when switching to them.
+		// Entities are assigned sprites. A sprite is either a static graphic or
+		// and animation sequence of many graphics. Sprites are stored in a SpriteSet,
+		// which is shared by every entity of the same type so that the animations
+		// are only defined once. Each sprite is given a string name when added.
+		playerSprites = new SpriteSet();
 		
-		// addSprite can take a string and a BufferedImage, and will create a static,
-		// non-animated sprite with the string as the key.
-		player.addSprite("stand", shoaffStand);
-		player.addSprite("jump", shoaffJump);
+		// add can take a string and a Texture, and will create a static,
+		// non-animated sprite with the string as the name.
+		playerSprites.add("stand", shoaffStand);
+		playerSprites.add("jump", shoaffJump);
 		
-		// It can also take an array of BufferedImages and longs; they should be
-		// the same length. The BufferedImages are the frames of an animation, and
+		// It can also take an array of Textures and longs; they should be
+		// the same length. The Textures are the frames of an animation, and
 		// the longs are the time in milliseconds that each individual frame should 
 		// be displayed. Here, we have 4 frames shown for 150 ms each.
-		BufferedImage[] runSprites = new BufferedImage[] {shoaffRun1, shoaffRun2, shoaffRun3, shoaffRun2};
+		Texture[] runSprites = new Texture[] {shoaffRun1, shoaffRun2, shoaffRun3, shoaffRun2};
 		long[] runDelays = new long[] {150, 150, 150, 150};
-		player.addSprite("run", runSprites, runDelays);
+		playerSprites.add("run", runSprites, runDelays);
 		
-		// Set sprite changes the player's graphic to the sprite matching the string
-		// given. We need to set the initial sprite for the player when the game begins.
-		player.setSprite("stand");
+		// Player is the entity for the PC. It looks up the handles of its sprites
+		// in the SpriteSet and starts out standing.
+		Player player = new Player(10, 10, playerSprites);
 		
 		// Now we add the player to the game world so that they are processed and drawn.
 		addEntity(player);
 		
 		// Tilesets use a HashMap to map strings to sprites. Here we create a single tile.
-		HashMap<Character, BufferedImage> tileset = new HashMap<Character, BufferedImage>();
+		HashMap<Character, Texture> tileset = new HashMap<Character, Texture>();
 		tileset.put('=', tubeTile);
 		
 		// See the Tilemap class for a detailed description of the parameters.
@@ -108,17 +124,105 @@ public class SampleGame extends Engine {
 				"                "
 		});
 		
+		// The tilemap is the solid world geometry. Putting it on its own collision layer
+		// lets the player only check against the world when moving.
+		tilemap.setCollisionCategory(LAYER_WORLD);
+		
 		// Of course, since the tilemap is just an entity, we have to add it to the game world
 		// as well.
 		addEntity(tilemap);
+		
+		// Small effects like dust are handled by a particle system instead of entities,
+		// since there can be thousands of them. The dust falls and bounces off of the
+		// solid tiles of the tilemap.
+		dust = new ParticleSystem(4096);
+		dust.gravity = 200;
+		dust.bounce = 0.3f;
+		dust.setCollisionMap(tilemap);
+		addParticleSystem(dust);
+		player.setDust(dust);
 	}
 
 	/**
-	 * Main method
+	 * Creates another player using the same sprites as the first. Only works
+	 * after the game has been initialized.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public Player createPlayer(int x, int y) {
+		Player player = new Player(x, y, playerSprites);
+		player.setDust(dust);
+		return player;
+	}
+	
+	/**
+	 * Main method. With no arguments, plays the game. With "record <file>", plays the
+	 * game and records the session to the file. With "replay <file>", replays a
+	 * recorded session without a window as fast as possible and prints how long the
+	 * frames took. With "simulate <worlds> <seconds>", runs that many copies of the
+	 * game without windows on every core and prints the total throughput.
+	 * 
 	 * @param args
 	 */
-	public static void main(String[] args) {
-		// Since the engine is booted up using the constructor, we just call it here to start.
-		SampleGame g = new SampleGame();
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 2 && args[0].equals("record")) {
+			record(args[1]);
+		} else if (args.length == 2 && args[0].equals("replay")) {
+			replay(args[1]);
+		} else if (args.length == 3 && args[0].equals("simulate")) {
+			simulate(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		} else {
+			// Since the engine is booted up using the constructor, we just call it here to start.
+			SampleGame g = new SampleGame();
+		}
+	}
+	
+	private static void record(String file) throws IOException {
+		SampleGame g = new SampleGame(false);
+		final InputRecorder recorder = new InputRecorder(new FileOutputStream(file), g.getSeed(), g.fps);
+		g.setRecorder(recorder);
+		
+		// The game exits when the window is closed, so that's when we finish the recording.
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					recorder.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		g.initialize();
+		g.run();
+	}
+	
+	private static void replay(String file) throws IOException {
+		Replay replay = new Replay(new FileInputStream(file));
+		replay.run(new SampleGame(true));
+		
+		replay.getHistogram().report(System.out);
+		if (replay.getDivergedFrame() != -1) {
+			System.out.println("Replay diverged from the recording at frame " + replay.getDivergedFrame());
+			System.exit(1);
+		}
+	}
+	
+	private static void simulate(int worlds, int seconds) throws InterruptedException {
+		WorldScheduler scheduler = new WorldScheduler(Runtime.getRuntime().availableProcessors());
+		for (int k = 0; k < worlds; k++) {
+			SampleGame g = new SampleGame(true);
+			g.initialize();
+			
+			// A tick rate of 0 runs each world as fast as possible
+			scheduler.add(g, 0);
+		}
+		
+		scheduler.start();
+		Thread.sleep(seconds * 1000L);
+		scheduler.stop();
+		scheduler.report(System.out);
 	}
 }
@@ -0,0 +1,99 @@
+package com.balwiki.mengine;
+
+import java.awt.event.KeyEvent;
+
+/**
+ * Checks that InputQueue doesn't lose key state when it overflows. Fills a
+ * small queue past its capacity, then has a producer thread hammer a queue
+ * while the consumer drains it slowly, and checks that every key ends up in
+ * the state of its last event.
+ * 
+ * Exits with status 1 if a check fails.
+ * 
+ * @author Michael Kelly
+ */
+public class InputQueueCheck {
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws InterruptedException {
+		checkFill();
+		checkConcurrent();
+		
+		if (failures > 0) {
+			System.out.println("FAILED: " + failures + " check(s)");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+	
+	/**
+	 * Fills the queue with presses, then releases keys after it's full. The
+	 * releases must still be seen, and later events must stay in order.
+	 */
+	private static void checkFill() {
+		InputQueue queue = new InputQueue(16);
+		Input input = new Input();
+		
+		for (int k = 0; k < 16; k++) {
+			check("queued press " + k, queue.offer(KeyEvent.VK_A + k, true, k));
+		}
+		check("press after full overflows", !queue.offer(KeyEvent.VK_SPACE, true, 16));
+		queue.offer(KeyEvent.VK_SPACE, false, 17);
+		queue.offer(KeyEvent.VK_A, false, 18);
+		
+		input.beginFrame();
+		queue.drainTo(input);
+		check("released key up", !input.isDown(KeyEvent.VK_A));
+		check("released key was pressed", input.wasPressed(KeyEvent.VK_A));
+		check("released key was released", input.wasReleased(KeyEvent.VK_A));
+		check("pressed key still down", input.isDown(KeyEvent.VK_B));
+		check("overflowed tap ends up", !input.isDown(KeyEvent.VK_SPACE));
+		
+		check("queue accepts events again", queue.offer(KeyEvent.VK_B, false, 19));
+		input.beginFrame();
+		queue.drainTo(input);
+		check("key released after overflow", !input.isDown(KeyEvent.VK_B) && input.wasReleased(KeyEvent.VK_B));
+	}
+	
+	/**
+	 * A producer taps random keys much faster than the consumer drains, then
+	 * releases everything. Every key must end up released.
+	 */
+	private static void checkConcurrent() throws InterruptedException {
+		final InputQueue queue = new InputQueue(8);
+		final int keys = 64;
+		Input input = new Input();
+		
+		Thread producer = new Thread() {
+			public void run() {
+				java.util.Random random = new java.util.Random(1);
+				for (int k = 0; k < 1000000; k++) {
+					queue.offer(random.nextInt(keys), random.nextBoolean(), k);
+				}
+				for (int code = 0; code < keys; code++) {
+					queue.offer(code, false, 1000000 + code);
+				}
+			}
+		};
+		producer.start();
+		while (producer.isAlive()) {
+			input.beginFrame();
+			queue.drainTo(input);
+		}
+		input.beginFrame();
+		queue.drainTo(input);
+		
+		boolean allUp = true;
+		for (int code = 0; code < keys; code++) {
+			allUp &= !input.isDown(code);
+		}
+		check("all keys released after overflowing", allUp);
+	}
+	
+	private static void check(String name, boolean ok) {
+		if (!ok) {
+			System.out.println("failed: " + name);
+			failures++;
+		}
+	}
+}
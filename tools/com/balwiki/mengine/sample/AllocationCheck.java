@@ -0,0 +1,214 @@
+package com.balwiki.mengine.sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Checks that the engine's per-frame hot path stays garbage-free. Runs the
+ * sample game headless with many extra players while a Java Flight Recorder
+ * recording samples allocations, and fails if any sampled allocation inside
+ * Engine.step was made by the engine rather than by Java2D.
+ * 
+ * Usage: AllocationCheck [frames] [players] [budget in bytes per frame]
+ * 
+ * Java2D allocates a few small rectangles inside every drawImage call, which the
+ * engine can't avoid. How much of that the JIT manages to eliminate changes from
+ * run to run (anywhere from under 2 KB to almost 20 KB per frame for the default
+ * scene), so a fixed byte budget would either miss real regressions or fail
+ * randomly. Instead, allocations made anywhere below SunGraphics2D are allowed,
+ * and every other sampled site fails the check. Sampling favors large and
+ * frequent allocations, so a site that allocates every frame is caught quickly.
+ * 
+ * The total bytes allocated per frame are always printed. A budget for them can
+ * be given as well, for checking against a known JDK and machine.
+ * 
+ * Exits with status 1 if the check fails. Unlike the engine, which sticks
+ * to old JDKs, this tool needs JDK 16 or newer for allocation sampling, so it
+ * lives in the separate tools source root rather than in src.
+ * 
+ * @author Michael Kelly
+ */
+public class AllocationCheck {
+	private static final int WARMUP_FRAMES = 2000;
+	private static final int TOP_SITES = 10;
+	
+	// Allocations made below this class are Java2D's, not the engine's
+	private static final String ALLOWED_CLASS = "sun.java2d.SunGraphics2D";
+	
+	public static void main(String[] args) throws IOException {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int players = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		long budget = args.length > 2 ? Long.parseLong(args[2]) : -1;
+		
+		// The reference scene: the sample map, plus players spread across it that
+		// fall, land, and animate
+		SampleGame game = new SampleGame(true);
+		game.initialize();
+		for (int k = 0; k < players; k++) {
+			game.addEntity(game.createPlayer((k * 37) % 234, (k * 13) % 200));
+		}
+		
+		// Let the JIT compile the hot path and buffers grow to their final size
+		for (int k = 0; k < WARMUP_FRAMES; k++) {
+			game.step();
+		}
+		
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		
+		Recording recording = new Recording();
+		recording.enable("jdk.ObjectAllocationSample").withStackTrace();
+		recording.start();
+		
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int k = 0; k < frames; k++) {
+			game.step();
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+		
+		recording.stop();
+		File dump = File.createTempFile("allocations", ".jfr");
+		recording.dump(dump.toPath());
+		recording.close();
+		
+		double perFrame = (double) allocated / frames;
+		System.out.println(String.format("%d frames, %d players: %d bytes allocated, %.1f bytes/frame",
+				frames, players, allocated, perFrame));
+		int engineSites = reportSites(dump);
+		dump.delete();
+		
+		boolean failed = false;
+		if (engineSites > 0) {
+			System.out.println("FAILED: the engine allocated at " + engineSites + " sampled site(s)");
+			failed = true;
+		}
+		if (budget >= 0 && perFrame > budget) {
+			System.out.println("FAILED: allocation budget of " + budget + " bytes/frame exceeded");
+			failed = true;
+		}
+		if (failed) {
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+	
+	/**
+	 * Prints the methods that allocated the most during the recording, weighted
+	 * by the sampled allocation sizes, and marks the ones that aren't Java2D's.
+	 * Only allocations made inside Engine.step on the current thread are counted,
+	 * which leaves out the recording's own setup.
+	 * 
+	 * @return Number of sites that aren't Java2D's
+	 */
+	private static int reportSites(File dump) throws IOException {
+		final Map<String, Long> sites = new HashMap<String, Long>();
+		List<String> engineSites = new ArrayList<String>();
+		String threadName = Thread.currentThread().getName();
+		
+		for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+			if (event.getThread() == null || !threadName.equals(event.getThread().getJavaName())
+					|| !insideStep(event.getStackTrace())) {
+				continue;
+			}
+			
+			String site = describe(event.getStackTrace()) + " (" + event.getClass("objectClass").getName() + ")";
+			Long weight = sites.get(site);
+			sites.put(site, (weight == null ? 0 : weight) + event.getLong("weight"));
+			
+			if (weight == null && !insideJava2D(event.getStackTrace())) {
+				engineSites.add(site);
+			}
+		}
+		
+		List<String> sorted = new ArrayList<String>(sites.keySet());
+		Collections.sort(sorted, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return sites.get(b).compareTo(sites.get(a));
+			}
+		});
+		
+		System.out.println("Top allocation sites:");
+		if (sorted.isEmpty()) {
+			System.out.println("  none sampled");
+		}
+		for (int k = 0; k < Math.min(TOP_SITES, sorted.size()); k++) {
+			System.out.println(String.format("  %10d bytes  %s", sites.get(sorted.get(k)), sorted.get(k)));
+		}
+		
+		if (!engineSites.isEmpty()) {
+			System.out.println("Allocation sites in the engine:");
+			for (String site : engineSites) {
+				System.out.println(String.format("  %10d bytes  %s", sites.get(site), site));
+			}
+		}
+		
+		return engineSites.size();
+	}
+	
+	private static boolean insideStep(RecordedStackTrace stack) {
+		if (stack == null) {
+			return false;
+		}
+		
+		for (RecordedFrame frame : stack.getFrames()) {
+			if (frame.getMethod().getName().equals("step")
+					&& frame.getMethod().getType().getName().equals("com.balwiki.mengine.Engine")) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Checks whether an allocation was made by Java2D on the engine's behalf,
+	 * meaning a SunGraphics2D frame sits between the allocation and the first
+	 * frame in the engine.
+	 */
+	private static boolean insideJava2D(RecordedStackTrace stack) {
+		for (RecordedFrame frame : stack.getFrames()) {
+			String type = frame.getMethod().getType().getName();
+			if (type.equals(ALLOWED_CLASS)) {
+				return true;
+			}
+			if (type.startsWith("com.balwiki.mengine")) {
+				return false;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Describes an allocation site by its first frame in the engine, along with
+	 * the frame that actually allocated if that's somewhere else, like the JDK.
+	 */
+	private static String describe(RecordedStackTrace stack) {
+		List<RecordedFrame> frames = stack.getFrames();
+		String site = format(frames.get(0));
+		for (int k = 0; k < frames.size(); k++) {
+			if (frames.get(k).getMethod().getType().getName().startsWith("com.balwiki.mengine")) {
+				return k == 0 ? site : format(frames.get(k)) + " -> " + site;
+			}
+		}
+		
+		return site;
+	}
+	
+	private static String format(RecordedFrame frame) {
+		return frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+	}
+}